@@ -0,0 +1,390 @@
+package cpd.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * JMH harness for the MatrixMultiplication kernels.
+ *
+ * MatrixMultiplication lives in the default package (it is compiled with a plain
+ * "javac MatrixMultiplication.java"), which cannot be imported from here, so the
+ * kernels are bound once through static final method handles that the JIT inlines.
+ *
+ * Run with "java -jar target/benchmarks.jar [JMH options]". After the usual JMH
+ * output, main prints the mean time, error and GFLOP/s (2 * n^3 floating point
+ * operations per product) of every kernel/size/block size combination.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx16g", "--add-modules=jdk.incubator.vector"})
+public class MatrixBenchmark {
+
+    static final MethodHandle MULT = kernel("mult",
+        double[][].class, double[][].class, double[][].class, int.class);
+    static final MethodHandle MULT_LINE = kernel("multLine",
+        double[][].class, double[][].class, double[][].class, int.class);
+    static final MethodHandle MULT_BLOCK = kernel("multBlock",
+        double[].class, double[].class, double[].class, int.class, int.class);
+    static final MethodHandle MULT_BLOCK_VECTOR = kernel("multBlockVector",
+        double[].class, double[].class, double[].class, int.class, int.class);
+    static final MethodHandle MULT_PARALLEL = kernel("multParallel",
+        ForkJoinPool.class, double[].class, double[].class, double[].class, int.class, int.class);
+
+    // Kernels on the flat Matrix class, which cannot be named here either: its type is erased to Object
+    static final Class<?> MATRIX = type("Matrix");
+    static final MethodHandle MATRIX_MULT = matrixKernel("mult");
+    static final MethodHandle MATRIX_MULT_LINE = matrixKernel("multLine");
+    static final MethodHandle MATRIX_MULT_BLOCK = matrixKernel("multBlock");
+    static final MethodHandle MATRIX_ONES = matrixFactory("ones");
+    static final MethodHandle MATRIX_ROW_INDEX = matrixFactory("rowIndexPlusOne");
+    static final MethodHandle MATRIX_NEW = matrixFactory(null);
+    static final MethodHandle MATRIX_CLEAR = matrixClear();
+
+    static final MethodHandle LINE_FLOAT = floatKernel("multLine", float[].class);
+    static final MethodHandle LINE_MIXED = floatKernel("multLine", double[].class);
+    static final MethodHandle BLOCK_FLOAT = floatKernel("multBlock", float[].class, int.class);
+    static final MethodHandle BLOCK_MIXED = floatKernel("multBlock", double[].class, int.class);
+
+    static final Class<?> STRASSEN = type("Strassen");
+    static final MethodHandle STRASSEN_NEW = strassenHandle(null);
+    static final MethodHandle STRASSEN_MULTIPLY = strassenHandle("multiply");
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle kernel(String name, Class<?>... params) {
+        try {
+            Class<?> mm = type("MatrixMultiplication");
+            return MethodHandles.publicLookup().findStatic(mm, name, MethodType.methodType(void.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // FloatKernels.name(float[] a, float[] b, <resultType> c, int size[, int bkSize])
+    static MethodHandle floatKernel(String name, Class<?> resultType, Class<?>... blockSize) {
+        try {
+            MethodType type = MethodType.methodType(void.class, float[].class, float[].class, resultType, int.class)
+                .appendParameterTypes(blockSize);
+            return MethodHandles.publicLookup().findStatic(type("FloatKernels"), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle matrixKernel(String name) {
+        return kernel(name, MATRIX, MATRIX, MATRIX, int.class, boolean.class)
+            .asType(MethodType.methodType(void.class, Object.class, Object.class, Object.class, int.class, boolean.class));
+    }
+
+    // name == null is the constructor
+    static MethodHandle matrixFactory(String name) {
+        try {
+            MethodType type = MethodType.methodType(name == null ? void.class : MATRIX, int.class);
+            MethodHandle handle = name == null
+                ? MethodHandles.publicLookup().findConstructor(MATRIX, type)
+                : MethodHandles.publicLookup().findStatic(MATRIX, name, type);
+            return handle.asType(MethodType.methodType(Object.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // name == null is the constructor
+    static MethodHandle strassenHandle(String name) {
+        try {
+            if (name == null) {
+                return MethodHandles.publicLookup().findConstructor(STRASSEN,
+                        MethodType.methodType(void.class, ForkJoinPool.class, int.class, int.class, int.class))
+                    .asType(MethodType.methodType(Object.class, ForkJoinPool.class, int.class, int.class, int.class));
+            }
+            return MethodHandles.publicLookup().findVirtual(STRASSEN, name,
+                    MethodType.methodType(void.class, double[].class, double[].class, double[].class, int.class))
+                .asType(MethodType.methodType(void.class, Object.class, double[].class, double[].class, double[].class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle matrixClear() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(MATRIX, "clear", MethodType.methodType(void.class))
+                .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Same sizes as the C++ report: 600..3000 step 400, then 4096..10240 step 2048
+    @State(Scope.Benchmark)
+    public static class Square {
+        @Param({"600", "1000", "1400", "1800", "2200", "2600", "3000", "4096", "6144", "8192", "10240"})
+        public int size;
+
+        public double[][] matrixA, matrixB, matrixC;
+
+        @Setup(Level.Trial)
+        public void allocate() {
+            matrixA = new double[size][size];
+            matrixB = new double[size][size];
+            matrixC = new double[size][size];
+            for (int i = 0; i < size; i++) {
+                Arrays.fill(matrixA[i], 1.0);
+                Arrays.fill(matrixB[i], i + 1);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            for (double[] row : matrixC) Arrays.fill(row, 0.0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Flat {
+        @Param({"600", "1000", "1400", "1800", "2200", "2600", "3000", "4096", "6144", "8192", "10240"})
+        public int size;
+
+        // 0 = all available processors
+        @Param({"0"})
+        public int threads;
+
+        public double[] matrixA, matrixB, matrixC;
+        public ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void allocate() {
+            matrixA = new double[size * size];
+            matrixB = new double[size * size];
+            matrixC = new double[size * size];
+            Arrays.fill(matrixA, 1.0);
+            for (int i = 0; i < size; i++) {
+                Arrays.fill(matrixB, i * size, (i + 1) * size, i + 1);
+            }
+            pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            Arrays.fill(matrixC, 0.0);
+        }
+
+        @TearDown(Level.Trial)
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Tiled extends Flat {
+        @Param({"128", "256", "512"})
+        public int blockSize;
+    }
+
+    // float inputs; floatC for the float kernels, mixedC for float multiply / double accumulate
+    @State(Scope.Benchmark)
+    public static class Single {
+        @Param({"600", "1000", "1400", "1800", "2200", "2600", "3000", "4096", "6144", "8192", "10240"})
+        public int size;
+
+        @Param({"128", "256", "512"})
+        public int blockSize;
+
+        public float[] matrixA, matrixB, floatC;
+        public double[] mixedC;
+
+        @Setup(Level.Trial)
+        public void allocate() {
+            matrixA = new float[size * size];
+            matrixB = new float[size * size];
+            floatC = new float[size * size];
+            mixedC = new double[size * size];
+            Arrays.fill(matrixA, 1.0f);
+            for (int i = 0; i < size; i++) {
+                Arrays.fill(matrixB, i * size, (i + 1) * size, i + 1);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            Arrays.fill(floatC, 0.0f);
+            Arrays.fill(mixedC, 0.0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Recursive extends Tiled {
+        @Param({"256", "512", "1024"})
+        public int cutoff;
+
+        public Object strassen;
+
+        // Buffers are allocated here by a first multiplication, so the benchmark only measures reuse
+        @Setup(Level.Trial)
+        public void prepare() throws Throwable {
+            int threads = pool.getParallelism();
+            strassen = (Object) STRASSEN_NEW.invokeExact(pool, cutoff, blockSize, threads > 7 ? 2 : 1);
+            STRASSEN_MULTIPLY.invokeExact(strassen, matrixA, matrixB, matrixC, size);
+        }
+    }
+
+    // Flat row-major Matrix, with and without packing B panels (panel width = blockSize)
+    @State(Scope.Benchmark)
+    public static class Layout {
+        @Param({"600", "1000", "1400", "1800", "2200", "2600", "3000", "4096", "6144", "8192", "10240"})
+        public int size;
+
+        @Param({"128", "256", "512"})
+        public int blockSize;
+
+        @Param({"false", "true"})
+        public boolean packed;
+
+        public Object matrixA, matrixB, matrixC;
+
+        @Setup(Level.Trial)
+        public void allocate() throws Throwable {
+            matrixA = (Object) MATRIX_ONES.invokeExact(size);
+            matrixB = (Object) MATRIX_ROW_INDEX.invokeExact(size);
+            matrixC = (Object) MATRIX_NEW.invokeExact(size);
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() throws Throwable {
+            MATRIX_CLEAR.invokeExact(matrixC);
+        }
+    }
+
+    @Benchmark
+    public Object onMultFlat(Layout l) throws Throwable {
+        MATRIX_MULT.invokeExact(l.matrixA, l.matrixB, l.matrixC, l.blockSize, l.packed);
+        return l.matrixC;
+    }
+
+    @Benchmark
+    public Object onMultLineFlat(Layout l) throws Throwable {
+        MATRIX_MULT_LINE.invokeExact(l.matrixA, l.matrixB, l.matrixC, l.blockSize, l.packed);
+        return l.matrixC;
+    }
+
+    @Benchmark
+    public Object onMultBlockFlat(Layout l) throws Throwable {
+        MATRIX_MULT_BLOCK.invokeExact(l.matrixA, l.matrixB, l.matrixC, l.blockSize, l.packed);
+        return l.matrixC;
+    }
+
+    @Benchmark
+    public double[][] onMult(Square s) throws Throwable {
+        MULT.invokeExact(s.matrixA, s.matrixB, s.matrixC, s.size);
+        return s.matrixC;
+    }
+
+    @Benchmark
+    public double[][] onMultLine(Square s) throws Throwable {
+        MULT_LINE.invokeExact(s.matrixA, s.matrixB, s.matrixC, s.size);
+        return s.matrixC;
+    }
+
+    @Benchmark
+    public double[] onMultBlock(Tiled t) throws Throwable {
+        MULT_BLOCK.invokeExact(t.matrixA, t.matrixB, t.matrixC, t.size, t.blockSize);
+        return t.matrixC;
+    }
+
+    @Benchmark
+    public double[] onMultBlockVector(Tiled t) throws Throwable {
+        MULT_BLOCK_VECTOR.invokeExact(t.matrixA, t.matrixB, t.matrixC, t.size, t.blockSize);
+        return t.matrixC;
+    }
+
+    @Benchmark
+    public double[] onMultStrassen(Recursive r) throws Throwable {
+        STRASSEN_MULTIPLY.invokeExact(r.strassen, r.matrixA, r.matrixB, r.matrixC, r.size);
+        return r.matrixC;
+    }
+
+    @Benchmark
+    public float[] onMultLineFloat(Single s) throws Throwable {
+        LINE_FLOAT.invokeExact(s.matrixA, s.matrixB, s.floatC, s.size);
+        return s.floatC;
+    }
+
+    @Benchmark
+    public double[] onMultLineMixed(Single s) throws Throwable {
+        LINE_MIXED.invokeExact(s.matrixA, s.matrixB, s.mixedC, s.size);
+        return s.mixedC;
+    }
+
+    @Benchmark
+    public float[] onMultBlockFloat(Single s) throws Throwable {
+        BLOCK_FLOAT.invokeExact(s.matrixA, s.matrixB, s.floatC, s.size, s.blockSize);
+        return s.floatC;
+    }
+
+    @Benchmark
+    public double[] onMultBlockMixed(Single s) throws Throwable {
+        BLOCK_MIXED.invokeExact(s.matrixA, s.matrixB, s.mixedC, s.size, s.blockSize);
+        return s.mixedC;
+    }
+
+    @Benchmark
+    public double[] parallelOnMultLine(Flat s) throws Throwable {
+        MULT_PARALLEL.invokeExact(s.pool, s.matrixA, s.matrixB, s.matrixC, s.size, 0);
+        return s.matrixC;
+    }
+
+    @Benchmark
+    public double[] parallelOnMultBlock(Tiled t) throws Throwable {
+        MULT_PARALLEL.invokeExact(t.pool, t.matrixA, t.matrixB, t.matrixC, t.size, t.blockSize);
+        return t.matrixC;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Collection<RunResult> results = new Runner(new CommandLineOptions(args)).run();
+
+        System.out.printf("%n%-22s %7s %6s %8s %7s %12s %12s %9s%n",
+            "Kernel", "Size", "Block", "Threads", "Packed", "Mean (s)", "Error (s)", "GFLOP/s");
+        for (RunResult run : results) {
+            BenchmarkParams params = run.getParams();
+            Result<?> primary = run.getPrimaryResult();
+            int size = Integer.parseInt(params.getParam("size"));
+            double perSecond = params.getTimeUnit().convert(1, TimeUnit.SECONDS);
+            double seconds = primary.getScore() / perSecond;
+            double error = primary.getScoreError() / perSecond;
+
+            System.out.printf("%-22s %7d %6s %8s %7s %12.4f %12.4f %9.3f%n",
+                params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1),
+                size,
+                param(params, "blockSize"),
+                param(params, "threads"),
+                param(params, "packed"),
+                seconds,
+                Double.isNaN(error) ? 0.0 : error,
+                2.0 * size * size * size / seconds / 1e9);
+        }
+    }
+
+    private static String param(BenchmarkParams params, String key) {
+        String value = params.getParam(key);
+        return value == null ? "-" : value;
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// Non-interactive driver: runs a whole sweep in one JVM, for scripts and cron.
+//
+//   java MatrixMultiplication --kernels mult,line,block --sizes 600,1000 --blocks 128,256
+//                             --threads 4 --reps 3 --out results.csv
+//   java MatrixMultiplication --spec sweep.properties
+//
+// A spec file is a properties file with the same keys (kernels=..., sizes=...); options
+// given on the command line win. --out ending in .json writes JSON, anything else CSV,
+// and no --out prints CSV. Matrices are allocated once per size and shared by every
+// kernel; each result is compared with the result of the first kernel of that size and
+// the exit status is 1 if any of them differs.
+public class BatchRunner {
+    static final List<String> KERNELS = List.of(
+        "mult", "line", "block", "blockVector", "packedBlock", "parallelLine", "parallelBlock", "strassen");
+    private static final List<String> BLOCKED = List.of(
+        "block", "blockVector", "packedBlock", "parallelBlock", "strassen");
+
+    private final List<String> kernels;
+    private final int[] sizes, blocks;
+    private final int threads, reps, cutoff;
+    private final String out;
+
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+    private boolean mismatch;
+
+    private BatchRunner(Properties options) {
+        kernels = Arrays.asList(options.getProperty("kernels", String.join(",", KERNELS)).split(","));
+        for (String k : kernels) {
+            if (!KERNELS.contains(k)) throw new IllegalArgumentException("Unknown kernel " + k + ", expected one of " + KERNELS);
+        }
+        sizes = ints(options.getProperty("sizes", "600,1000,1400,1800,2200,2600,3000"));
+        blocks = ints(options.getProperty("blocks", "128,256,512"));
+        threads = Integer.parseInt(options.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        reps = Integer.parseInt(options.getProperty("reps", "1"));
+        cutoff = Integer.parseInt(options.getProperty("cutoff", "512"));
+        out = options.getProperty("out");
+    }
+
+    private static int[] ints(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    static void run(String[] args) {
+        Properties options = new Properties();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --<option> <value>, got " + args[i]);
+                }
+                options.setProperty(args[i].substring(2), args[i + 1]);
+            }
+            String spec = options.getProperty("spec");
+            if (spec != null) {
+                Properties merged = new Properties();
+                try (FileReader r = new FileReader(spec)) {
+                    merged.load(r);
+                }
+                merged.putAll(options);
+                options = merged;
+            }
+
+            BatchRunner runner = new BatchRunner(options);
+            runner.sweep();
+            runner.write();
+            if (runner.mismatch) {
+                System.err.println("Some kernels returned a different result matrix.");
+                System.exit(1);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private void sweep() {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Random random = new Random(42);
+
+        for (int size : sizes) {
+            // small integers keep every sum exact, so all kernels must agree to the last bit
+            // (except Strassen, which is compared with a relative tolerance)
+            double[] matrixA = new double[size * size];
+            double[] matrixB = new double[size * size];
+            double[] matrixC = new double[size * size];
+            for (int i = 0; i < size * size; i++) {
+                matrixA[i] = random.nextInt(10);
+                matrixB[i] = random.nextInt(10);
+            }
+            double[][] nestedA = null, nestedB = null, nestedC = null;
+            if (kernels.contains("mult") || kernels.contains("line")) {
+                nestedA = new double[size][];
+                nestedB = new double[size][];
+                nestedC = new double[size][size];
+                for (int i = 0; i < size; i++) {
+                    nestedA[i] = Arrays.copyOfRange(matrixA, i * size, (i + 1) * size);
+                    nestedB[i] = Arrays.copyOfRange(matrixB, i * size, (i + 1) * size);
+                }
+            }
+            Matrix flatA = null, flatB = null, flatC = null;
+            if (kernels.contains("packedBlock")) {
+                flatA = new Matrix(size);
+                flatB = new Matrix(size);
+                flatC = new Matrix(size);
+                System.arraycopy(matrixA, 0, flatA.data, 0, matrixA.length);
+                System.arraycopy(matrixB, 0, flatB.data, 0, matrixB.length);
+            }
+            double[] reference = null;
+            String referenceKernel = null;
+
+            for (String kernel : kernels) {
+                for (int bkSize : BLOCKED.contains(kernel) ? blocks : new int[] {0}) {
+                    Strassen strassen = kernel.equals("strassen")
+                        ? new Strassen(pool, cutoff, bkSize, threads > 7 ? 2 : 1) : null;
+
+                    for (int rep = 1; rep <= reps; rep++) {
+                        Arrays.fill(matrixC, 0.0);
+                        if (nestedC != null) for (double[] row : nestedC) Arrays.fill(row, 0.0);
+                        if (flatC != null) flatC.clear();
+
+                        long startTime = System.nanoTime();
+                        switch (kernel) {
+                            case "mult": MatrixMultiplication.mult(nestedA, nestedB, nestedC, size); break;
+                            case "line": MatrixMultiplication.multLine(nestedA, nestedB, nestedC, size); break;
+                            case "block": MatrixMultiplication.multBlock(matrixA, matrixB, matrixC, size, bkSize); break;
+                            case "blockVector": MatrixMultiplication.multBlockVector(matrixA, matrixB, matrixC, size, bkSize); break;
+                            case "packedBlock": MatrixMultiplication.multBlock(flatA, flatB, flatC, bkSize, true); break;
+                            case "parallelLine": MatrixMultiplication.multParallel(pool, matrixA, matrixB, matrixC, size, 0); break;
+                            case "parallelBlock": MatrixMultiplication.multParallel(pool, matrixA, matrixB, matrixC, size, bkSize); break;
+                            default: strassen.multiply(matrixA, matrixB, matrixC, size);
+                        }
+                        long endTime = System.nanoTime();
+
+                        if (nestedC != null && (kernel.equals("mult") || kernel.equals("line"))) {
+                            for (int i = 0; i < size; i++) System.arraycopy(nestedC[i], 0, matrixC, i * size, size);
+                        } else if (kernel.equals("packedBlock")) {
+                            System.arraycopy(flatC.data, 0, matrixC, 0, matrixC.length);
+                        }
+
+                        double error = 0;
+                        if (reference == null) {
+                            reference = matrixC.clone();
+                            referenceKernel = kernel;
+                        } else {
+                            for (int i = 0; i < matrixC.length; i++) {
+                                error = Math.max(error, Math.abs(matrixC[i] - reference[i]) / Math.max(1.0, Math.abs(reference[i])));
+                            }
+                        }
+                        boolean ok = error <= (kernel.equals("strassen") ? 1e-9 : 0.0);
+                        mismatch |= !ok;
+
+                        double seconds = (endTime - startTime) / 1e9;
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        row.put("kernel", kernel);
+                        row.put("size", size);
+                        row.put("block", bkSize);
+                        row.put("threads", kernel.startsWith("parallel") || kernel.equals("strassen") ? threads : 1);
+                        row.put("rep", rep);
+                        row.put("time_s", seconds);
+                        row.put("gflops", 2.0 * size * size * size / seconds / 1e9);
+                        row.put("max_error", error);
+                        row.put("check", ok ? "ok" : "differs from " + referenceKernel);
+                        rows.add(row);
+                        System.err.printf("%-14s n=%-6d block=%-4d rep=%d  %.3f s  %s%n",
+                            kernel, size, bkSize, rep, seconds, row.get("check"));
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+    }
+
+    private void write() throws IOException {
+        boolean json = out != null && out.endsWith(".json");
+        Writer target = out == null ? new OutputStreamWriter(System.out) : new FileWriter(out);
+        try (PrintWriter w = new PrintWriter(target)) {
+            if (json) {
+                w.println("[");
+                for (int r = 0; r < rows.size(); r++) {
+                    StringBuilder line = new StringBuilder("  {");
+                    int f = 0;
+                    for (Map.Entry<String, Object> e : rows.get(r).entrySet()) {
+                        if (f++ > 0) line.append(", ");
+                        line.append(json(e.getKey())).append(": ").append(json(e.getValue()));
+                    }
+                    w.println(line.append(r + 1 < rows.size() ? "}," : "}"));
+                }
+                w.println("]");
+            } else {
+                if (!rows.isEmpty()) w.println(String.join(",", rows.get(0).keySet()));
+                for (Map<String, Object> row : rows) {
+                    List<String> values = new ArrayList<>();
+                    for (Object v : row.values()) values.add(String.valueOf(v));
+                    w.println(String.join(",", values));
+                }
+            }
+        }
+    }
+
+    // A JSON value: numbers as they are, except that JSON has no NaN or Infinity (a failed or
+    // zero-time run), which become null; anything else as an escaped string
+    private static String json(Object value) {
+        if (value instanceof Number n && !Double.isFinite(n.doubleValue())) return "null";
+        if (value instanceof Number || value instanceof Boolean) return String.valueOf(value);
+        String s = String.valueOf(value);
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+                    else quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+// Picks the block size and tile loop order for the block kernel by timing a short
+// calibration run of each candidate. Candidates come from the cache sizes in
+// /sys/devices/system/cpu (largest tile where one tile of A, B and C fits in L1, L2
+// and L3) plus the usual powers of two. Each size class (power of two) is calibrated on
+// a quarter of its size, between CALIBRATION_SIZE and MAX_CALIBRATION_SIZE, so the larger
+// classes keep their row stride and room for their L2/L3 tiles. A run only computes one
+// band of at least CALIBRATION_ROWS rows of C (whole tiles), and candidates are compared
+// by time per row, so calibration stays in the seconds even for the largest classes.
+// The winner is saved per (host, size class) in a properties file (-Dautotune.file,
+// default autotune.properties) so the next runs on the same host skip the search.
+public class BlockTuner {
+    private static final File CACHE_FILE = new File(System.getProperty("autotune.file", "autotune.properties"));
+    private static final int CALIBRATION_SIZE = 512;
+    private static final int MAX_CALIBRATION_SIZE = 1024;
+    private static final int CALIBRATION_ROWS = 64;
+    private static final int RUNS = 2;
+
+    static class Config {
+        final int bkSize;
+        final MatrixMultiplication.TileOrder order;
+
+        Config(int bkSize, MatrixMultiplication.TileOrder order) {
+            this.bkSize = bkSize;
+            this.order = order;
+        }
+    }
+
+    static Config tune(int size) {
+        int sizeClass = Integer.highestOneBit(Math.max(1, size));
+        String key = host() + ".n" + sizeClass;
+        Properties cache = new Properties();
+        if (CACHE_FILE.exists()) {
+            try (FileReader r = new FileReader(CACHE_FILE)) {
+                cache.load(r);
+            } catch (IOException e) {
+                System.out.println("Cannot read " + CACHE_FILE + ": " + e.getMessage());
+            }
+        }
+
+        String cached = cache.getProperty(key);
+        if (cached != null) {
+            try {
+                String[] p = cached.split(",");
+                return new Config(Integer.parseInt(p[0]), MatrixMultiplication.TileOrder.valueOf(p[1]));
+            } catch (RuntimeException e) {
+                System.out.println("Ignoring bad autotune entry " + key + "=" + cached);
+            }
+        }
+
+        int n = Math.min(size, Math.min(MAX_CALIBRATION_SIZE, Math.max(CALIBRATION_SIZE, sizeClass / 4)));
+        Config best = calibrate(n);
+        cache.setProperty(key, best.bkSize + "," + best.order);
+        try (FileWriter w = new FileWriter(CACHE_FILE)) {
+            cache.store(w, "Block multiplication autotuning: <host>.n<size class>=<block size>,<tile order>");
+        } catch (IOException e) {
+            System.out.println("Cannot write " + CACHE_FILE + ": " + e.getMessage());
+        }
+        return best;
+    }
+
+    // Best of RUNS timed runs (after one warm-up run) for every candidate and tile order;
+    // candidates larger than n cannot be timed and are left out
+    private static Config calibrate(int n) {
+        double[] matrixA = new double[n * n];
+        double[] matrixB = new double[n * n];
+        double[] matrixC = new double[n * n];
+        java.util.Arrays.fill(matrixA, 1.0);
+        java.util.Arrays.fill(matrixB, 1.0);
+
+        Config best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (int bkSize : candidates(n)) {
+            int rows = Math.min(n, (CALIBRATION_ROWS + bkSize - 1) / bkSize * bkSize);
+            for (MatrixMultiplication.TileOrder order : MatrixMultiplication.TileOrder.values()) {
+                long time = Long.MAX_VALUE;
+                for (int run = 0; run <= RUNS; run++) {
+                    java.util.Arrays.fill(matrixC, 0.0);
+                    long startTime = System.nanoTime();
+                    MatrixMultiplication.multBlock(matrixA, matrixB, matrixC, n, bkSize, order, rows);
+                    long endTime = System.nanoTime();
+                    if (run > 0) time = Math.min(time, endTime - startTime);
+                }
+                double perRow = (double) time / rows;
+                System.out.printf("  block %4d %s: %.3f seconds for %d rows\n", bkSize, order, time / 1e9, rows);
+                if (perRow < bestTime) {
+                    bestTime = perRow;
+                    best = new Config(bkSize, order);
+                }
+            }
+        }
+        return best;
+    }
+
+    static List<Integer> candidates(int n) {
+        TreeSet<Integer> sizes = new TreeSet<>();
+        for (int b = 16; b <= 512; b *= 2) sizes.add(b);
+        for (long cache : dataCacheSizes()) {
+            // three bkSize x bkSize tiles of doubles, rounded down to a multiple of 8 (one cache line)
+            int b = (int) Math.sqrt(cache / (3.0 * Double.BYTES)) / 8 * 8;
+            if (b >= 8) sizes.add(b);
+        }
+        List<Integer> result = new ArrayList<>();
+        for (int b : sizes) if (b <= n) result.add(b);
+        if (result.isEmpty()) result.add(n);
+        return result;
+    }
+
+    // Sizes in bytes of the data/unified caches of cpu0, one per level
+    static List<Long> dataCacheSizes() {
+        List<Long> sizes = new ArrayList<>();
+        File[] dirs = new File("/sys/devices/system/cpu/cpu0/cache").listFiles((d, name) -> name.startsWith("index"));
+        if (dirs == null) return sizes;
+        for (File dir : dirs) {
+            try {
+                String type = Files.readString(Path.of(dir.getPath(), "type")).trim();
+                if (type.equals("Instruction")) continue;
+                String size = Files.readString(Path.of(dir.getPath(), "size")).trim();
+                long unit = size.endsWith("K") ? 1024 : size.endsWith("M") ? 1024 * 1024 : 1;
+                sizes.add(Long.parseLong(size.replaceAll("[KM]$", "")) * unit);
+            } catch (IOException | NumberFormatException ignored) { }
+        }
+        return sizes;
+    }
+
+    private static String host() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Matrix multiplication split across worker JVMs over TCP.
+//
+// The coordinator arranges the workers in a pr x pc grid and gives worker (r, c) the
+// block (r, c) of C. Like SUMMA, it then streams the k dimension in panels of width bkSize:
+// for each panel the worker gets the rows of its block from A[:, k..k+bk) and the columns
+// of its block from B[k..k+bk, :], and adds their product to its block of C. The worker
+// multiplies one panel while the next ones are still arriving.
+//
+// Worker:  java DistributedMultiplication worker <port>     (port 0 = any free port)
+// Frames (DataOutputStream, big endian):
+//   JOB    byte 1, int rows, int cols                  -> worker allocates a zeroed rows x cols block
+//   PANEL  byte 2, int width, rows*width doubles (A), width*cols doubles (B)
+//   DONE   byte 3                                      -> worker answers RESULT
+//   RESULT byte 4, long computeNanos, rows*cols doubles
+//   BYE    byte 0                                      -> worker closes the connection
+public class DistributedMultiplication {
+    private static final byte BYE = 0, JOB = 1, PANEL = 2, DONE = 3, RESULT = 4;
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !args[0].equals("worker")) {
+            System.out.println("Usage: java DistributedMultiplication worker <port>");
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[1]))) {
+            System.out.println("Worker is listening on port " + serverSocket.getLocalPort());
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread.startVirtualThread(() -> serve(socket));
+            }
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            int rows = 0, cols = 0;
+            double[] block = null, panelA = new double[0], panelB = new double[0];
+            byte[] buffer = new byte[CHUNK_BYTES];
+            long computeNanos = 0;
+
+            while (true) {
+                byte type = in.readByte();
+                if (type == JOB) {
+                    rows = in.readInt();
+                    cols = in.readInt();
+                    block = new double[rows * cols];
+                    computeNanos = 0;
+                } else if (type == PANEL) {
+                    int width = in.readInt();
+                    if (panelA.length < rows * width) panelA = new double[rows * width];
+                    if (panelB.length < width * cols) panelB = new double[width * cols];
+                    readDoubles(in, panelA, rows * width, buffer);
+                    readDoubles(in, panelB, width * cols, buffer);
+
+                    long start = System.nanoTime();
+                    for (int i = 0; i < rows; i++) {
+                        for (int k = 0; k < width; k++) {
+                            double temp = panelA[i * width + k];
+                            for (int j = 0; j < cols; j++) {
+                                block[i * cols + j] += temp * panelB[k * cols + j];
+                            }
+                        }
+                    }
+                    computeNanos += System.nanoTime() - start;
+                } else if (type == DONE) {
+                    out.writeByte(RESULT);
+                    out.writeLong(computeNanos);
+                    writeDoubles(out, block, rows * cols, buffer);
+                    out.flush();
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+            // coordinator closed the connection
+        }
+    }
+
+    // Bulk conversion through a reusable byte[] of CHUNK_BYTES instead of one readDouble/writeDouble
+    // per element; the doubles go through it CHUNK_BYTES at a time, so a block of any size needs no
+    // byte array of its own (and no int byte count that can overflow)
+    private static void readDoubles(DataInputStream in, double[] dst, int count, byte[] buffer) throws IOException {
+        for (int done = 0; done < count; ) {
+            int n = Math.min(count - done, buffer.length / Double.BYTES);
+            in.readFully(buffer, 0, n * Double.BYTES);
+            ByteBuffer.wrap(buffer, 0, n * Double.BYTES).asDoubleBuffer().get(dst, done, n);
+            done += n;
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] src, int count, byte[] buffer) throws IOException {
+        for (int done = 0; done < count; ) {
+            int n = Math.min(count - done, buffer.length / Double.BYTES);
+            ByteBuffer.wrap(buffer, 0, n * Double.BYTES).asDoubleBuffer().put(src, done, n);
+            out.write(buffer, 0, n * Double.BYTES);
+            done += n;
+        }
+    }
+
+    // Per-worker timings of the last multiply call
+    static class WorkerStats {
+        final String address;
+        long wallNanos, computeNanos, bytesSent, bytesReceived;
+
+        WorkerStats(String address) {
+            this.address = address;
+        }
+    }
+
+    // matrixC = matrixA * matrixB on the given workers ("host:port")
+    static List<WorkerStats> multiply(List<String> workers, double[] matrixA, double[] matrixB, double[] matrixC,
+                                      int size, int bkSize) throws IOException {
+        int p = workers.size();
+        int gridRows = (int) Math.sqrt(p);
+        while (p % gridRows != 0) gridRows--;
+        int gridCols = p / gridRows;
+
+        List<WorkerStats> stats = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        IOException[] failure = new IOException[1];
+        for (int w = 0; w < p; w++) {
+            WorkerStats s = new WorkerStats(workers.get(w));
+            stats.add(s);
+            int r = w / gridCols, c = w % gridCols;
+            int row0 = split(size, gridRows, r), row1 = split(size, gridRows, r + 1);
+            int col0 = split(size, gridCols, c), col1 = split(size, gridCols, c + 1);
+            threads.add(Thread.startVirtualThread(() -> {
+                try {
+                    runWorker(s, matrixA, matrixB, matrixC, size, bkSize, row0, row1, col0, col1);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        failure[0] = new IOException(s.address + ": " + e.getMessage(), e);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+        if (failure[0] != null) throw failure[0];
+        return stats;
+    }
+
+    private static int split(int size, int parts, int index) {
+        return (int) ((long) size * index / parts);
+    }
+
+    private static void runWorker(WorkerStats s, double[] matrixA, double[] matrixB, double[] matrixC, int size,
+                                  int bkSize, int row0, int row1, int col0, int col1) throws IOException {
+        String[] hostPort = s.address.split(":");
+        int rows = row1 - row0, cols = col1 - col0;
+        long start = System.nanoTime();
+
+        try (Socket socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            socket.setTcpNoDelay(true);
+            out.writeByte(JOB);
+            out.writeInt(rows);
+            out.writeInt(cols);
+
+            double[] panelA = new double[rows * bkSize];
+            double[] panelB = new double[bkSize * cols];
+            byte[] buffer = new byte[CHUNK_BYTES];
+            for (int kk = 0; kk < size; kk += bkSize) {
+                int width = Math.min(bkSize, size - kk);
+                for (int i = 0; i < rows; i++) {
+                    System.arraycopy(matrixA, (row0 + i) * size + kk, panelA, i * width, width);
+                }
+                for (int k = 0; k < width; k++) {
+                    System.arraycopy(matrixB, (kk + k) * size + col0, panelB, k * cols, cols);
+                }
+                out.writeByte(PANEL);
+                out.writeInt(width);
+                writeDoubles(out, panelA, rows * width, buffer);
+                writeDoubles(out, panelB, width * cols, buffer);
+                s.bytesSent += 5 + (long) (rows + cols) * width * Double.BYTES;
+            }
+            out.writeByte(DONE);
+            out.flush();
+
+            if (in.readByte() != RESULT) throw new IOException("Unexpected frame from worker");
+            s.computeNanos = in.readLong();
+            double[] block = new double[rows * cols];
+            readDoubles(in, block, rows * cols, buffer);
+            s.bytesReceived = 9 + (long) rows * cols * Double.BYTES;
+            for (int i = 0; i < rows; i++) {
+                System.arraycopy(block, i * cols, matrixC, (row0 + i) * size + col0, cols);
+            }
+            out.writeByte(BYE);
+            out.flush();
+        }
+        s.wallNanos = System.nanoTime() - start;
+    }
+
+    // Starts n workers on localhost, each in its own JVM, and returns their addresses
+    static List<Process> startLocalWorkers(int n, List<String> addresses) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classPath = System.getProperty("java.class.path");
+        List<Process> processes = new ArrayList<>();
+        for (int w = 0; w < n; w++) {
+            Process process = new ProcessBuilder(java, "-cp", classPath, "DistributedMultiplication", "worker", "0")
+                .redirectErrorStream(true)
+                .start();
+            processes.add(process);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line = reader.readLine();
+            if (line == null || !line.startsWith("Worker is listening on port ")) {
+                processes.forEach(Process::destroy);
+                throw new IOException("Worker did not start: " + line);
+            }
+            addresses.add("localhost:" + line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return processes;
+    }
+}
@@ -0,0 +1,105 @@
+// Single and mixed precision versions of the line and block kernels. float halves the
+// memory traffic and doubles the SIMD width; "mixed" multiplies in float but accumulates
+// C in double, which keeps most of the accuracy of the double kernels.
+public class FloatKernels {
+
+    public enum Precision { DOUBLE, FLOAT, MIXED }
+
+    // matrixC must be zeroed by the caller
+    public static void multLine(float[] matrixA, float[] matrixB, float[] matrixC, int size) {
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < size; k++) {
+                float temp = matrixA[i * size + k];
+                for (int j = 0; j < size; j++) {
+                    matrixC[i * size + j] += temp * matrixB[k * size + j];
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multLine(float[] matrixA, float[] matrixB, double[] matrixC, int size) {
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < size; k++) {
+                float temp = matrixA[i * size + k];
+                for (int j = 0; j < size; j++) {
+                    matrixC[i * size + j] += temp * matrixB[k * size + j];
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlockVector(float[] matrixA, float[] matrixB, float[] matrixC, int size, int bkSize) {
+        if (MatrixMultiplication.VECTOR_LANES > 0) {
+            VectorKernel.multBlock(matrixA, matrixB, matrixC, size, bkSize);
+        } else {
+            multBlock(matrixA, matrixB, matrixC, size, bkSize);
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlock(float[] matrixA, float[] matrixB, float[] matrixC, int size, int bkSize) {
+        for (int ii = 0; ii < size; ii += bkSize) {
+            for (int kk = 0; kk < size; kk += bkSize) {
+                for (int jj = 0; jj < size; jj += bkSize) {
+
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                            float temp = matrixA[i * size + k];
+
+                            for (int j = jj; j < Math.min(jj + bkSize, size); j++) {
+                                matrixC[i * size + j] += temp * matrixB[k * size + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlock(float[] matrixA, float[] matrixB, double[] matrixC, int size, int bkSize) {
+        for (int ii = 0; ii < size; ii += bkSize) {
+            for (int kk = 0; kk < size; kk += bkSize) {
+                for (int jj = 0; jj < size; jj += bkSize) {
+
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                            float temp = matrixA[i * size + k];
+
+                            for (int j = jj; j < Math.min(jj + bkSize, size); j++) {
+                                matrixC[i * size + j] += temp * matrixB[k * size + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static float[] toFloat(double[] matrix) {
+        float[] result = new float[matrix.length];
+        for (int i = 0; i < matrix.length; i++) result[i] = (float) matrix[i];
+        return result;
+    }
+
+    // Largest |c - reference| relative to the largest |reference|
+    static double maxError(float[] matrixC, double[] reference) {
+        double error = 0, scale = 0;
+        for (int i = 0; i < reference.length; i++) {
+            error = Math.max(error, Math.abs(matrixC[i] - reference[i]));
+            scale = Math.max(scale, Math.abs(reference[i]));
+        }
+        return scale == 0 ? error : error / scale;
+    }
+
+    static double maxError(double[] matrixC, double[] reference) {
+        double error = 0, scale = 0;
+        for (int i = 0; i < reference.length; i++) {
+            error = Math.max(error, Math.abs(matrixC[i] - reference[i]));
+            scale = Math.max(scale, Math.abs(reference[i]));
+        }
+        return scale == 0 ? error : error / scale;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Square matrix stored off-heap in a memory-mapped file, in a tiled layout:
+// each bkSize x bkSize tile is contiguous (edge tiles are padded with zeros),
+// tiles are stored row by row. A single mapping is limited to 2GB, so the file
+// is mapped in segments that each hold a whole number of tiles.
+public class MappedMatrix implements AutoCloseable {
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    final int size;
+    final int bkSize;
+    final int tiles;
+    private final int tileDoubles;
+    private final int tilesPerSegment;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] segments;
+    private final DoubleBuffer[] views;
+
+    long bytesRead;
+    long bytesWritten;
+
+    MappedMatrix(File file, int size, int bkSize) throws IOException {
+        this.file = file;
+        this.size = size;
+        this.bkSize = bkSize;
+        this.tiles = (size + bkSize - 1) / bkSize;
+        this.tileDoubles = bkSize * bkSize;
+
+        long tileBytes = (long) tileDoubles * Double.BYTES;
+        long totalTiles = (long) tiles * tiles;
+        this.tilesPerSegment = (int) Math.max(1, Math.min(totalTiles, SEGMENT_BYTES / tileBytes));
+        int segmentCount = (int) ((totalTiles + tilesPerSegment - 1) / tilesPerSegment);
+
+        this.raf = new RandomAccessFile(file, "rw");
+        raf.setLength(totalTiles * tileBytes);
+        FileChannel channel = raf.getChannel();
+
+        this.segments = new MappedByteBuffer[segmentCount];
+        this.views = new DoubleBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            long first = (long) s * tilesPerSegment;
+            long count = Math.min(tilesPerSegment, totalTiles - first);
+            segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, first * tileBytes, count * tileBytes);
+            segments[s].order(ByteOrder.nativeOrder());
+            views[s] = segments[s].asDoubleBuffer();
+        }
+    }
+
+    // Copies tile (ti, tj) into dst (length bkSize * bkSize)
+    void readTile(int ti, int tj, double[] dst) {
+        long t = (long) ti * tiles + tj;
+        views[(int) (t / tilesPerSegment)].get((int) (t % tilesPerSegment) * tileDoubles, dst, 0, tileDoubles);
+        bytesRead += (long) tileDoubles * Double.BYTES;
+    }
+
+    void writeTile(int ti, int tj, double[] src) {
+        long t = (long) ti * tiles + tj;
+        views[(int) (t / tilesPerSegment)].put((int) (t % tilesPerSegment) * tileDoubles, src, 0, tileDoubles);
+        bytesWritten += (long) tileDoubles * Double.BYTES;
+    }
+
+    // Same initial values as the heap versions: A[i][j] = 1, B[i][j] = i + 1
+    void fill(boolean rowIndexPlusOne) {
+        double[] tile = new double[tileDoubles];
+        for (int ti = 0; ti < tiles; ti++) {
+            for (int tj = 0; tj < tiles; tj++) {
+                for (int i = 0; i < bkSize; i++) {
+                    for (int j = 0; j < bkSize; j++) {
+                        int row = ti * bkSize + i;
+                        int col = tj * bkSize + j;
+                        tile[i * bkSize + j] = row >= size || col >= size ? 0.0
+                            : rowIndexPlusOne ? row + 1 : 1.0;
+                    }
+                }
+                writeTile(ti, tj, tile);
+            }
+        }
+    }
+
+    double get(int row, int col) {
+        long t = (long) (row / bkSize) * tiles + col / bkSize;
+        int offset = (int) (t % tilesPerSegment) * tileDoubles + (row % bkSize) * bkSize + col % bkSize;
+        return views[(int) (t / tilesPerSegment)].get(offset);
+    }
+
+    void flush() {
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,58 @@
+// Square matrix in a single flat row-major array, so a row is one contiguous run of
+// memory and there is no pointer chase per row as with double[][].
+// The pack methods copy a panel of the matrix into a contiguous buffer, the way GEMM
+// micro-kernels pack B before running, so the kernel walks it with stride 1.
+public final class Matrix {
+    final int size;
+    final double[] data;
+
+    public Matrix(int size) {
+        this.size = size;
+        this.data = new double[size * size];
+    }
+
+    // Same initial values as the menu versions: A[i][j] = 1, B[i][j] = i + 1
+    public static Matrix ones(int size) {
+        Matrix m = new Matrix(size);
+        java.util.Arrays.fill(m.data, 1.0);
+        return m;
+    }
+
+    public static Matrix rowIndexPlusOne(int size) {
+        Matrix m = new Matrix(size);
+        for (int i = 0; i < size; i++) {
+            java.util.Arrays.fill(m.data, i * size, (i + 1) * size, i + 1);
+        }
+        return m;
+    }
+
+    public double get(int i, int j) {
+        return data[i * size + j];
+    }
+
+    void set(int i, int j, double value) {
+        data[i * size + j] = value;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(data, 0.0);
+    }
+
+    // Copies rows [row, row + height) x columns [col, col + width) into panel, row by row
+    // (panel[r * width + c]). Parts outside the matrix are not copied.
+    void packRows(int row, int col, int height, int width, double[] panel) {
+        for (int r = 0; r < height; r++) {
+            System.arraycopy(data, (row + r) * size + col, panel, r * width, width);
+        }
+    }
+
+    // Same panel, column by column (panel[c * height + r]), so a column is contiguous
+    void packColumns(int row, int col, int height, int width, double[] panel) {
+        for (int r = 0; r < height; r++) {
+            int from = (row + r) * size + col;
+            for (int c = 0; c < width; c++) {
+                panel[c * height + r] = data[from + c];
+            }
+        }
+    }
+}
@@ -1,34 +1,305 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class MatrixMultiplication {
 
-    public static void onMult(int size) {
-        double[][] matrixA = new double[size][size];
-        double[][] matrixB = new double[size][size];
-        double[][] matrixC = new double[size][size];
+    // Kernels only do the multiplication, so they can be timed from outside (benchmarks)
+    // without the allocation, initialization and printing done by the menu versions.
 
+    public static void mult(double[][] matrixA, double[][] matrixB, double[][] matrixC, int size) {
         for (int i = 0; i < size; i++) {
             for (int j = 0; j < size; j++) {
-                matrixA[i][j] = 1.0;
-                matrixB[i][j] = i + 1;
+                double temp = 0;
+                for (int k = 0; k < size; k++) {
+                    temp += matrixA[i][k] * matrixB[k][j];
+                }
+                matrixC[i][j] = temp;
             }
         }
+    }
 
-        long startTime = System.nanoTime();
-
+    // matrixC must be zeroed by the caller
+    public static void multLine(double[][] matrixA, double[][] matrixB, double[][] matrixC, int size) {
         for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                double temp = 0;
+            for (int k = 0; k < size; k++) {
+                double temp = matrixA[i][k]; 
+                for (int j = 0; j < size; j++) {
+                    matrixC[i][j] += temp * matrixB[k][j];
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlock(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize) {
+        for (int ii = 0; ii < size; ii += bkSize) {
+            for (int kk = 0; kk < size; kk += bkSize) {
+                for (int jj = 0; jj < size; jj += bkSize) {
+
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                            double temp = matrixA[i * size + k]; 
+
+                            for (int j = jj; j < Math.min(jj + bkSize, size); j++) {
+                                matrixC[i * size + j] += temp * matrixB[k * size + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Order of the three tile loops of the block kernel; inside a tile the loops stay i, k, j
+    public enum TileOrder { IKJ, IJK, KIJ }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlock(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize,
+                                 TileOrder order) {
+        if (order == TileOrder.IKJ) multBlock(matrixA, matrixB, matrixC, size, bkSize);
+        else multBlock(matrixA, matrixB, matrixC, size, bkSize, order, size);
+    }
+
+    // Computes only the first rows rows of C (a multiple of bkSize, or size); BlockTuner times
+    // one band of tiles this way instead of the whole product
+    static void multBlock(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize,
+                          TileOrder order, int rows) {
+        switch (order) {
+            case IJK:
+                for (int ii = 0; ii < rows; ii += bkSize)
+                    for (int jj = 0; jj < size; jj += bkSize)
+                        for (int kk = 0; kk < size; kk += bkSize)
+                            multTile(matrixA, matrixB, matrixC, size, bkSize, ii, kk, jj);
+                break;
+            case KIJ:
+                for (int kk = 0; kk < size; kk += bkSize)
+                    for (int ii = 0; ii < rows; ii += bkSize)
+                        for (int jj = 0; jj < size; jj += bkSize)
+                            multTile(matrixA, matrixB, matrixC, size, bkSize, ii, kk, jj);
+                break;
+            default:
+                for (int ii = 0; ii < rows; ii += bkSize)
+                    for (int kk = 0; kk < size; kk += bkSize)
+                        for (int jj = 0; jj < size; jj += bkSize)
+                            multTile(matrixA, matrixB, matrixC, size, bkSize, ii, kk, jj);
+        }
+    }
+
+    private static void multTile(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize,
+                                 int ii, int kk, int jj) {
+        for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+            for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                double temp = matrixA[i * size + k];
+
+                for (int j = jj; j < Math.min(jj + bkSize, size); j++) {
+                    matrixC[i * size + j] += temp * matrixB[k * size + j];
+                }
+            }
+        }
+    }
+
+    // Kernels on the flat Matrix layout. With packed = true, B is copied panel by panel into a
+    // contiguous buffer before the inner loops run (columns for mult, rows for multLine, one
+    // tile for multBlock); the loop order is the same as in the double[][] versions.
+
+    public static void mult(Matrix matrixA, Matrix matrixB, Matrix matrixC, int panelWidth, boolean packed) {
+        int size = matrixC.size;
+        double[] a = matrixA.data, b = matrixB.data, c = matrixC.data;
+
+        if (!packed) {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    double temp = 0;
+                    for (int k = 0; k < size; k++) {
+                        temp += a[i * size + k] * b[k * size + j];
+                    }
+                    c[i * size + j] = temp;
+                }
+            }
+            return;
+        }
+
+        double[] panel = new double[size * panelWidth];
+        for (int jj = 0; jj < size; jj += panelWidth) {
+            int width = Math.min(panelWidth, size - jj);
+            matrixB.packColumns(0, jj, size, width, panel);
+
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < width; j++) {
+                    double temp = 0;
+                    for (int k = 0; k < size; k++) {
+                        temp += a[i * size + k] * panel[j * size + k];
+                    }
+                    c[i * size + jj + j] = temp;
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multLine(Matrix matrixA, Matrix matrixB, Matrix matrixC, int panelWidth, boolean packed) {
+        int size = matrixC.size;
+        double[] a = matrixA.data, b = matrixB.data, c = matrixC.data;
+
+        if (!packed) {
+            for (int i = 0; i < size; i++) {
                 for (int k = 0; k < size; k++) {
-                    temp += matrixA[i][k] * matrixB[k][j];
+                    double temp = a[i * size + k];
+                    for (int j = 0; j < size; j++) {
+                        c[i * size + j] += temp * b[k * size + j];
+                    }
                 }
-                matrixC[i][j] = temp;
+            }
+            return;
+        }
+
+        double[] panel = new double[size * panelWidth];
+        for (int jj = 0; jj < size; jj += panelWidth) {
+            int width = Math.min(panelWidth, size - jj);
+            matrixB.packRows(0, jj, size, width, panel);
+
+            for (int i = 0; i < size; i++) {
+                for (int k = 0; k < size; k++) {
+                    double temp = a[i * size + k];
+                    for (int j = 0; j < width; j++) {
+                        c[i * size + jj + j] += temp * panel[k * width + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlock(Matrix matrixA, Matrix matrixB, Matrix matrixC, int bkSize, boolean packed) {
+        int size = matrixC.size;
+        double[] a = matrixA.data, c = matrixC.data;
+
+        if (!packed) {
+            multBlock(a, matrixB.data, c, size, bkSize);
+            return;
+        }
+
+        // each (kk, jj) tile of B is packed once and then swept by every row tile of A and C
+        double[] tile = new double[bkSize * bkSize];
+        for (int kk = 0; kk < size; kk += bkSize) {
+            for (int jj = 0; jj < size; jj += bkSize) {
+                int height = Math.min(bkSize, size - kk);
+                int width = Math.min(bkSize, size - jj);
+                matrixB.packRows(kk, jj, height, width, tile);
+
+                for (int ii = 0; ii < size; ii += bkSize) {
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        for (int k = 0; k < height; k++) {
+                            double temp = a[i * size + kk + k];
+
+                            for (int j = 0; j < width; j++) {
+                                c[i * size + jj + j] += temp * tile[k * width + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // SIMD lanes per vector, or 0 when the Vector API is not available (scalar fallback)
+    static final int VECTOR_LANES = vectorLanes();
+
+    private static int vectorLanes() {
+        try {
+            return VectorKernel.lanes() > 1 ? VectorKernel.lanes() : 0;
+        } catch (LinkageError e) {
+            return 0;
+        }
+    }
+
+    // matrixC must be zeroed by the caller
+    public static void multBlockVector(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize) {
+        if (VECTOR_LANES > 0) {
+            VectorKernel.multBlock(matrixA, matrixB, matrixC, size, bkSize);
+        } else {
+            multBlock(matrixA, matrixB, matrixC, size, bkSize);
+        }
+    }
+
+    // Out-of-core block multiplication: streams one tile of A, B and C at a time through the
+    // mapped files, so only three bkSize x bkSize tiles are ever on the heap
+    public static void multMapped(MappedMatrix matrixA, MappedMatrix matrixB, MappedMatrix matrixC) {
+        int bkSize = matrixC.bkSize;
+        double[] tileA = new double[bkSize * bkSize];
+        double[] tileB = new double[bkSize * bkSize];
+        double[] tileC = new double[bkSize * bkSize];
+
+        for (int ti = 0; ti < matrixC.tiles; ti++) {
+            for (int tj = 0; tj < matrixC.tiles; tj++) {
+                Arrays.fill(tileC, 0.0);
+                for (int tk = 0; tk < matrixC.tiles; tk++) {
+                    matrixA.readTile(ti, tk, tileA);
+                    matrixB.readTile(tk, tj, tileB);
+                    multBlockVector(tileA, tileB, tileC, bkSize, bkSize);
+                }
+                matrixC.writeTile(ti, tj, tileC);
             }
         }
+        matrixC.flush();
+    }
+
+    // bkSize <= 0 runs the line algorithm, otherwise the block algorithm; matrixC must be zeroed
+    public static void multParallel(ForkJoinPool pool, double[] matrixA, double[] matrixB, double[] matrixC,
+                                    int size, int bkSize) {
+        pool.invoke(new MultTask(matrixA, matrixB, matrixC, size, bkSize, 0, size));
+    }
+
+    // Times one run of a kernel; with -Dperf=on also collects its hardware counters with
+    // perf stat, prints them like the PAPI counters of the C++ version and adds a CSV line.
+    // threads = 0 means the kernel runs on the calling thread.
+    private static double measure(String kernel, int size, int bkSize, int threads, Runnable run) {
+        PerfCounters counters = PerfCounters.start(threads == 0);
+
+        long startTime = System.nanoTime();
+
+        run.run();
 
         long endTime = System.nanoTime();
-        System.out.printf("Time: %.3f seconds\n", (endTime - startTime) / 1e9);
+        double seconds = (endTime - startTime) / 1e9;
+        if (threads > 0) {
+            System.out.printf("Time: %.3f seconds (%d threads)\n", seconds, threads);
+        } else {
+            System.out.printf("Time: %.3f seconds\n", seconds);
+        }
+
+        if (PerfCounters.ENABLED) {
+            Map<String, Long> values = counters != null ? counters.stop() : Map.of();
+            for (String event : PerfCounters.EVENTS) {
+                long value = values.getOrDefault(event, -1L);
+                System.out.println(event + ": " + (value < 0 ? "n/a" : String.valueOf(value)));
+            }
+            PerfCounters.appendCsv(kernel, size, bkSize, Math.max(1, threads), seconds, values);
+        }
+        return seconds;
+    }
+
+    public static void onMult(int size) {
+        double[][] matrixA = new double[size][size];
+        double[][] matrixB = new double[size][size];
+        double[][] matrixC = new double[size][size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrixA[i][j] = 1.0;
+                matrixB[i][j] = i + 1;
+            }
+        }
+
+        measure("mult", size, 0, 0, () -> mult(matrixA, matrixB, matrixC, size));
 
         System.out.print("Result matrix: ");
         for (int j = 0; j < Math.min(10, size); j++) {
@@ -50,28 +321,55 @@ public class MatrixMultiplication {
             }
         }
 
-        long startTime = System.nanoTime();
+        measure("multLine", size, 0, 0, () -> multLine(matrixA, matrixB, matrixC, size));
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC[0][j] + " ");
+        }
+        System.out.println();
+    }
+
+    public static void onMultBlock(int size, int bkSize) {
+        onMultBlock(size, bkSize, false);
+    }
+
+    // Block size and tile order from the autotuner (cached per host and size class)
+    public static void onMultBlockAutotuned(int size) {
+        BlockTuner.Config config = BlockTuner.tune(size);
+        System.out.println("Autotuned: block size " + config.bkSize + ", tile order " + config.order);
+
+        double[] matrixA = new double[size * size];
+        double[] matrixB = new double[size * size];
+        double[] matrixC = new double[size * size];
 
         for (int i = 0; i < size; i++) {
-            for (int k = 0; k < size; k++) {
-                double temp = matrixA[i][k]; 
-                for (int j = 0; j < size; j++) {
-                    matrixC[i][j] += temp * matrixB[k][j];
-                }
+            for (int j = 0; j < size; j++) {
+                matrixA[i * size + j] = 1.0;
+                matrixB[i * size + j] = i + 1;
             }
         }
 
-        long endTime = System.nanoTime();
-        System.out.printf("Time: %.3f seconds\n", (endTime - startTime) / 1e9);
+        measure("multBlock" + config.order, size, config.bkSize, 0,
+                () -> multBlock(matrixA, matrixB, matrixC, size, config.bkSize, config.order));
 
         System.out.print("Result matrix: ");
         for (int j = 0; j < Math.min(10, size); j++) {
-            System.out.print(matrixC[0][j] + " ");
+            System.out.print(matrixC[j] + " ");
         }
         System.out.println();
     }
 
-    public static void onMultBlock(int size, int bkSize) {
+    public static void onMultBlockVector(int size, int bkSize) {
+        if (VECTOR_LANES == 0) {
+            System.out.println("Vector API not available (run with --add-modules jdk.incubator.vector), using scalar kernel.");
+        } else {
+            System.out.println("SIMD: " + VECTOR_LANES + " doubles per vector");
+        }
+        onMultBlock(size, bkSize, true);
+    }
+
+    private static void onMultBlock(int size, int bkSize, boolean simd) {
         double[] matrixA = new double[size * size];
         double[] matrixB = new double[size * size];
         double[] matrixC = new double[size * size];
@@ -84,15 +382,334 @@ public class MatrixMultiplication {
             }
         }
 
-        long startTime = System.nanoTime();
+        if (simd) {
+            measure("multBlockVector", size, bkSize, 0, () -> multBlockVector(matrixA, matrixB, matrixC, size, bkSize));
+        } else {
+            measure("multBlock", size, bkSize, 0, () -> multBlock(matrixA, matrixB, matrixC, size, bkSize));
+        }
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC[j] + " ");
+        }
+        System.out.println();
+    }
+
+    // Matrix files go to -Dmatrix.dir (default: the temporary directory) and are deleted afterwards
+    public static void onMultMapped(int size, int bkSize) {
+        File dir = new File(System.getProperty("matrix.dir", System.getProperty("java.io.tmpdir")));
+
+        try (MappedMatrix matrixA = new MappedMatrix(File.createTempFile("matrixA", ".bin", dir), size, bkSize);
+             MappedMatrix matrixB = new MappedMatrix(File.createTempFile("matrixB", ".bin", dir), size, bkSize);
+             MappedMatrix matrixC = new MappedMatrix(File.createTempFile("matrixC", ".bin", dir), size, bkSize)) {
+
+            matrixA.fill(false);
+            matrixB.fill(true);
+            matrixA.bytesWritten = matrixB.bytesWritten = 0;
+
+            measure("multMapped", size, bkSize, 0, () -> multMapped(matrixA, matrixB, matrixC));
+
+            long read = matrixA.bytesRead + matrixB.bytesRead + matrixC.bytesRead;
+            long written = matrixA.bytesWritten + matrixB.bytesWritten + matrixC.bytesWritten;
+            System.out.printf("Bytes read: %d (%.1f MB), written: %d (%.1f MB)\n",
+                read, read / 1e6, written, written / 1e6);
+
+            System.out.print("Result matrix: ");
+            for (int j = 0; j < Math.min(10, size); j++) {
+                System.out.print(matrixC.get(0, j) + " ");
+            }
+            System.out.println();
+        } catch (IOException e) {
+            System.out.println("Out-of-core multiplication failed: " + e.getMessage());
+        }
+    }
+
+    public static void onMultStrassen(int size, int bkSize, int cutoff, int threads) {
+        double[] matrixA = new double[size * size];
+        double[] matrixB = new double[size * size];
+        double[] matrixC = new double[size * size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrixA[i * size + j] = 1.0;
+                matrixB[i * size + j] = i + 1;
+            }
+        }
+
+        // 7 parallel products per level: a second parallel level only pays off with more than 7 threads
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Strassen strassen = new Strassen(pool, cutoff, bkSize, threads > 7 ? 2 : 1);
+
+        measure("strassen", size, bkSize, threads, () -> strassen.multiply(matrixA, matrixB, matrixC, size));
+        pool.shutdown();
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC[j] + " ");
+        }
+        System.out.println();
+    }
+
+    // Dense inputs with the given fractions of non-zeros. The path is picked from the measured
+    // density: SpGEMM if both matrices are sparse, SpMM if only A is, dense x CSC if only B is,
+    // else the parallel block kernel
+    public static void onMultSparse(int size, double nonZerosA, double nonZerosB, int bkSize, int threads) {
+        double[] matrixA = new double[size * size];
+        double[] matrixB = new double[size * size];
+        double[] matrixC = new double[size * size];
+
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                if (random.nextDouble() < nonZerosA) matrixA[i * size + j] = 1.0;
+                if (random.nextDouble() < nonZerosB) matrixB[i * size + j] = i + 1;
+            }
+        }
+
+        double densityA = SparseMatrix.density(matrixA);
+        double densityB = SparseMatrix.density(matrixB);
+        boolean sparseA = densityA < SparseMatrix.SPARSE_THRESHOLD;
+        boolean sparseB = densityB < SparseMatrix.SPARSE_THRESHOLD;
+        System.out.printf("Density: A %.2f%%, B %.2f%% -> %s\n", densityA * 100, densityB * 100,
+            sparseA ? (sparseB ? "SpGEMM (CSR x CSR)" : "SpMM (CSR x dense)")
+                    : (sparseB ? "dense x CSC" : "dense parallel block"));
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        if (!sparseA && !sparseB) {
+            measure("parallelBlock", size, bkSize, threads,
+                    () -> multParallel(pool, matrixA, matrixB, matrixC, size, bkSize));
+        } else if (!sparseA) {
+            SparseMatrix cscB = SparseMatrix.fromDense(matrixB, size).transpose();
+            measure("denseCsc", size, 0, threads, () -> cscB.multDenseByCsc(matrixA, matrixC, pool));
+        } else {
+            SparseMatrix csrA = SparseMatrix.fromDense(matrixA, size);
+            if (!sparseB) {
+                measure("spmm", size, 0, threads, () -> csrA.multDense(matrixB, matrixC, pool));
+            } else {
+                SparseMatrix csrB = SparseMatrix.fromDense(matrixB, size);
+                SparseMatrix[] result = new SparseMatrix[1];
+                measure("spgemm", size, 0, threads, () -> result[0] = csrA.multSparse(csrB, pool));
+                System.out.printf("Result non-zeros: %d (%.2f%%)\n", result[0].nonZeros(), result[0].density() * 100);
+                for (int j = 0; j < Math.min(10, size); j++) matrixC[j] = result[0].get(0, j);
+            }
+        }
+        pool.shutdown();
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC[j] + " ");
+        }
+        System.out.println();
+    }
+
+    // workers is a list of host:port, or a number of workers to start on localhost
+    public static void onMultDistributed(int size, String workers, int bkSize) {
+        double[] matrixA = new double[size * size];
+        double[] matrixB = new double[size * size];
+        double[] matrixC = new double[size * size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrixA[i * size + j] = 1.0;
+                matrixB[i * size + j] = i + 1;
+            }
+        }
+
+        List<String> addresses = new ArrayList<>();
+        List<Process> local = new ArrayList<>();
+        try {
+            if (workers.matches("\\d+")) {
+                local = DistributedMultiplication.startLocalWorkers(Integer.parseInt(workers), addresses);
+            } else {
+                addresses.addAll(Arrays.asList(workers.split(",")));
+            }
+
+            long startTime = System.nanoTime();
+
+            List<DistributedMultiplication.WorkerStats> stats =
+                DistributedMultiplication.multiply(addresses, matrixA, matrixB, matrixC, size, bkSize);
+
+            long endTime = System.nanoTime();
+            long maxCompute = 0;
+            for (DistributedMultiplication.WorkerStats s : stats) {
+                maxCompute = Math.max(maxCompute, s.computeNanos);
+                System.out.printf("  %-22s compute %.3f s, communication %.3f s, sent %.1f MB, received %.1f MB\n",
+                    s.address, s.computeNanos / 1e9, (s.wallNanos - s.computeNanos) / 1e9,
+                    s.bytesSent / 1e6, s.bytesReceived / 1e6);
+            }
+            System.out.printf("Time: %.3f seconds (%d workers; compute %.3f s, communication %.3f s)\n",
+                (endTime - startTime) / 1e9, stats.size(), maxCompute / 1e9, (endTime - startTime - maxCompute) / 1e9);
+        } catch (IOException e) {
+            System.out.println("Distributed multiplication failed: " + e.getMessage());
+            return;
+        } finally {
+            local.forEach(Process::destroy);
+        }
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC[j] + " ");
+        }
+        System.out.println();
+    }
+
+    // Runs the line (bkSize <= 0) or block kernel in double, float and mixed precision on the
+    // same random data and reports each one's speedup and max error against the scalar double
+    // run. Speedups compare like with like: the scalar kernels with the scalar double kernel and,
+    // when the Vector API is there, the SIMD block kernels with the SIMD double one.
+    public static void onMultPrecision(int size, int bkSize) {
+        Matrix matrixA = new Matrix(size);
+        Matrix matrixB = new Matrix(size);
+        Matrix matrixC = new Matrix(size);
+        double[] reference = matrixC.data;
+
+        Random random = new Random(size);
+        for (int i = 0; i < size * size; i++) {
+            matrixA.data[i] = random.nextDouble();
+            matrixB.data[i] = random.nextDouble();
+        }
+        float[] floatA = FloatKernels.toFloat(matrixA.data);
+        float[] floatB = FloatKernels.toFloat(matrixB.data);
+        float[] floatC = new float[size * size];
+        double[] doubleC = new double[size * size];
+        double[] mixedC = new double[size * size];
+
+        boolean[] kinds = bkSize > 0 && VECTOR_LANES > 0 ? new boolean[] {false, true} : new boolean[] {false};
+        for (boolean simd : kinds) {
+            double doubleTime = 0;
+            for (FloatKernels.Precision precision : FloatKernels.Precision.values()) {
+                // there is no SIMD kernel for mixed precision
+                if (simd && precision == FloatKernels.Precision.MIXED) continue;
+
+                String kernel = (bkSize > 0 ? "multBlock" : "multLine") + (simd ? "Vector" : "")
+                    + precision.name().charAt(0) + precision.name().substring(1).toLowerCase();
+                Runnable run;
+                switch (precision) {
+                    case DOUBLE:
+                        if (simd) run = () -> multBlockVector(matrixA.data, matrixB.data, doubleC, size, bkSize);
+                        else if (bkSize > 0) run = () -> multBlock(matrixA.data, matrixB.data, reference, size, bkSize);
+                        else run = () -> multLine(matrixA, matrixB, matrixC, 0, false);
+                        break;
+                    case FLOAT:
+                        Arrays.fill(floatC, 0f);
+                        if (simd) run = () -> FloatKernels.multBlockVector(floatA, floatB, floatC, size, bkSize);
+                        else if (bkSize > 0) run = () -> FloatKernels.multBlock(floatA, floatB, floatC, size, bkSize);
+                        else run = () -> FloatKernels.multLine(floatA, floatB, floatC, size);
+                        break;
+                    default:
+                        if (bkSize > 0) run = () -> FloatKernels.multBlock(floatA, floatB, mixedC, size, bkSize);
+                        else run = () -> FloatKernels.multLine(floatA, floatB, mixedC, size);
+                }
+
+                System.out.println(precision + (simd ? " (SIMD)" : " (scalar)"));
+                double seconds = measure(kernel, size, Math.max(0, bkSize), 0, run);
+                if (precision == FloatKernels.Precision.DOUBLE) doubleTime = seconds;
+
+                double error = precision == FloatKernels.Precision.FLOAT ? FloatKernels.maxError(floatC, reference)
+                    : precision == FloatKernels.Precision.MIXED ? FloatKernels.maxError(mixedC, reference)
+                    : simd ? FloatKernels.maxError(doubleC, reference) : 0;
+                System.out.printf("Speedup %.2fx, max relative error %.3e\n", doubleTime / seconds, error);
+            }
+        }
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(reference[j] + " ");
+        }
+        System.out.println();
+    }
+
+    // Runs one algorithm on every layout with the same data, so the effect of the layout can be
+    // told apart from the effect of the loop order
+    public static void onMultLayouts(int size, int algorithm, int bkSize) {
+        Matrix matrixA = Matrix.ones(size);
+        Matrix matrixB = Matrix.rowIndexPlusOne(size);
+        Matrix matrixC = new Matrix(size);
+
+        if (algorithm == 1 || algorithm == 2) {
+            double[][] nestedA = new double[size][size];
+            double[][] nestedB = new double[size][size];
+            double[][] nestedC = new double[size][size];
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    nestedA[i][j] = matrixA.get(i, j);
+                    nestedB[i][j] = matrixB.get(i, j);
+                }
+            }
+
+            System.out.println("double[][]");
+            if (algorithm == 1) measure("multNested", size, 0, 0, () -> mult(nestedA, nestedB, nestedC, size));
+            else measure("multLineNested", size, 0, 0, () -> multLine(nestedA, nestedB, nestedC, size));
+        }
+
+        for (boolean packed : new boolean[] {false, true}) {
+            matrixC.clear();
+
+            String kernel;
+            Runnable run;
+            switch (algorithm) {
+                case 1: kernel = "mult"; run = () -> mult(matrixA, matrixB, matrixC, bkSize, packed); break;
+                case 2: kernel = "multLine"; run = () -> multLine(matrixA, matrixB, matrixC, bkSize, packed); break;
+                default: kernel = "multBlock"; run = () -> multBlock(matrixA, matrixB, matrixC, bkSize, packed); break;
+            }
+            System.out.println(packed ? "packed B" : "flat");
+            measure(kernel + (packed ? "Packed" : "Flat"), size, bkSize, 0, run);
+        }
+
+        System.out.print("Result matrix: ");
+        for (int j = 0; j < Math.min(10, size); j++) {
+            System.out.print(matrixC.get(0, j) + " ");
+        }
+        System.out.println();
+    }
+
+    // Splits a range of rows (line version) or of row tiles (block version) in halves
+    // until it is small enough, so each worker writes a disjoint set of rows of C.
+    private static class MultTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] matrixA, matrixB, matrixC;
+        private final int size, bkSize, lo, hi;
+
+        MultTask(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize, int lo, int hi) {
+            this.matrixA = matrixA;
+            this.matrixB = matrixB;
+            this.matrixC = matrixC;
+            this.size = size;
+            this.bkSize = bkSize;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            int step = bkSize > 0 ? bkSize : 1;
+            int tiles = (hi - lo + step - 1) / step;
+            if (tiles > 1) {
+                int mid = lo + (tiles / 2) * step;
+                invokeAll(new MultTask(matrixA, matrixB, matrixC, size, bkSize, lo, mid),
+                          new MultTask(matrixA, matrixB, matrixC, size, bkSize, mid, hi));
+                return;
+            }
+
+            if (bkSize <= 0) {
+                for (int i = lo; i < hi; i++) {
+                    for (int k = 0; k < size; k++) {
+                        double temp = matrixA[i * size + k];
+                        for (int j = 0; j < size; j++) {
+                            matrixC[i * size + j] += temp * matrixB[k * size + j];
+                        }
+                    }
+                }
+                return;
+            }
 
-        for (int ii = 0; ii < size; ii += bkSize) {
             for (int kk = 0; kk < size; kk += bkSize) {
                 for (int jj = 0; jj < size; jj += bkSize) {
 
-                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                    for (int i = lo; i < hi; i++) {
                         for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
-                            double temp = matrixA[i * size + k]; 
+                            double temp = matrixA[i * size + k];
 
                             for (int j = jj; j < Math.min(jj + bkSize, size); j++) {
                                 matrixC[i * size + j] += temp * matrixB[k * size + j];
@@ -102,9 +719,27 @@ public class MatrixMultiplication {
                 }
             }
         }
+    }
 
-        long endTime = System.nanoTime();
-        System.out.printf("Time: %.3f seconds\n", (endTime - startTime) / 1e9);
+    // bkSize <= 0 runs the line algorithm, otherwise the block algorithm
+    private static void onMultParallel(int size, int bkSize, int threads) {
+        double[] matrixA = new double[size * size];
+        double[] matrixB = new double[size * size];
+        double[] matrixC = new double[size * size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrixA[i * size + j] = 1.0;
+                matrixB[i * size + j] = i + 1;
+                matrixC[i * size + j] = 0.0;
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        measure(bkSize > 0 ? "parallelBlock" : "parallelLine", size, bkSize, threads,
+                () -> multParallel(pool, matrixA, matrixB, matrixC, size, bkSize));
+        pool.shutdown();
 
         System.out.print("Result matrix: ");
         for (int j = 0; j < Math.min(10, size); j++) {
@@ -113,15 +748,40 @@ public class MatrixMultiplication {
         System.out.println();
     }
 
+    public static void parallelOnMultLine(int size, int threads) {
+        onMultParallel(size, 0, threads);
+    }
+
+    public static void parallelOnMultBlock(int size, int bkSize, int threads) {
+        onMultParallel(size, bkSize, threads);
+    }
+
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            BatchRunner.run(args);
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
-        int option, size, blockSize;
+        int option, size, blockSize, threads;
+        int defaultThreads = args.length > 0
+            ? Integer.parseInt(args[0])
+            : Runtime.getRuntime().availableProcessors();
 
         do {
             System.out.println("\n1. Multiplication");
             System.out.println("2. Line Multiplication");
             System.out.println("3. Block Multiplication");
+            System.out.println("4. Parallel Line Multiplication");
+            System.out.println("5. Parallel Block Multiplication");
+            System.out.println("6. Block Multiplication (SIMD)");
+            System.out.println("7. Block Multiplication (out-of-core, memory-mapped)");
+            System.out.println("8. Layout comparison (double[][] / flat / packed B)");
+            System.out.println("9. Strassen Multiplication");
+            System.out.println("10. Sparse Multiplication (dense/CSR/CSC picked by density)");
+            System.out.println("11. Distributed Block Multiplication (worker JVMs over TCP)");
+            System.out.println("12. Precision comparison (double / float / mixed)");
             System.out.print("Selection?: ");
             option = scanner.nextInt();
 
@@ -138,9 +798,71 @@ public class MatrixMultiplication {
                     onMultLine(size);
                     break;
                 case 3:
+                    System.out.print("Block Size? (0 = autotune): ");
+                    blockSize = scanner.nextInt();
+                    if (blockSize > 0) onMultBlock(size, blockSize);
+                    else onMultBlockAutotuned(size);
+                    break;
+                case 4:
+                    System.out.print("Threads? (0 = " + defaultThreads + "): ");
+                    threads = scanner.nextInt();
+                    parallelOnMultLine(size, threads > 0 ? threads : defaultThreads);
+                    break;
+                case 5:
+                    System.out.print("Block Size?: ");
+                    blockSize = scanner.nextInt();
+                    System.out.print("Threads? (0 = " + defaultThreads + "): ");
+                    threads = scanner.nextInt();
+                    parallelOnMultBlock(size, blockSize, threads > 0 ? threads : defaultThreads);
+                    break;
+                case 6:
+                    System.out.print("Block Size?: ");
+                    blockSize = scanner.nextInt();
+                    onMultBlockVector(size, blockSize);
+                    break;
+                case 7:
+                    System.out.print("Block Size?: ");
+                    blockSize = scanner.nextInt();
+                    onMultMapped(size, blockSize);
+                    break;
+                case 8:
+                    System.out.print("Algorithm? (1-Multiplication 2-Line 3-Block): ");
+                    int algorithm = scanner.nextInt();
+                    System.out.print("Block/Panel Size?: ");
+                    blockSize = scanner.nextInt();
+                    onMultLayouts(size, algorithm, blockSize);
+                    break;
+                case 9:
                     System.out.print("Block Size?: ");
                     blockSize = scanner.nextInt();
-                    onMultBlock(size, blockSize);
+                    System.out.print("Cutoff? (block kernel below this size): ");
+                    int cutoff = scanner.nextInt();
+                    System.out.print("Threads? (0 = " + defaultThreads + "): ");
+                    threads = scanner.nextInt();
+                    onMultStrassen(size, blockSize, cutoff, threads > 0 ? threads : defaultThreads);
+                    break;
+                case 10:
+                    System.out.print("Non-zeros of A (%)?: ");
+                    double nonZerosA = scanner.nextDouble() / 100;
+                    System.out.print("Non-zeros of B (%)?: ");
+                    double nonZerosB = scanner.nextDouble() / 100;
+                    System.out.print("Block Size? (for the dense path): ");
+                    blockSize = scanner.nextInt();
+                    System.out.print("Threads? (0 = " + defaultThreads + "): ");
+                    threads = scanner.nextInt();
+                    onMultSparse(size, nonZerosA, nonZerosB, blockSize, threads > 0 ? threads : defaultThreads);
+                    break;
+                case 11:
+                    System.out.print("Workers? (host:port,... or how many to start on localhost): ");
+                    String workers = scanner.next();
+                    System.out.print("Block Size? (panel width): ");
+                    blockSize = scanner.nextInt();
+                    onMultDistributed(size, workers, blockSize);
+                    break;
+                case 12:
+                    System.out.print("Block Size? (0 = line algorithm): ");
+                    blockSize = scanner.nextInt();
+                    onMultPrecision(size, blockSize);
                     break;
                 default:
                     System.out.println("Invalid option.");
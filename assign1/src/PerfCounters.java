@@ -0,0 +1,120 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Hardware counters for the Java kernels, the counterpart of PAPI in matrixproduct.cpp.
+// Runs "perf stat" attached to this JVM around each kernel: only to the calling thread for
+// sequential kernels (like PAPI), to the whole process for parallel ones.
+//
+// Enabled with -Dperf=on. -Dperf.events changes the events (any "perf list" name, e.g.
+// l2_rqsts.demand_data_rd_miss for L2 misses on Intel), -Dperf.csv the CSV file.
+public class PerfCounters {
+    static final boolean ENABLED = "on".equals(System.getProperty("perf"));
+    static final List<String> EVENTS = List.of(System.getProperty("perf.events",
+        "L1-dcache-load-misses,LLC-load-misses,instructions,cycles").split(","));
+    private static final File CSV = new File(System.getProperty("perf.csv", "counters.csv"));
+    // perf gives no signal when it is attached, so wait a little before starting the kernel
+    private static final long ATTACH_DELAY_MS = Long.getLong("perf.delay", 200);
+
+    private final Process perf;
+
+    private PerfCounters(Process perf) {
+        this.perf = perf;
+    }
+
+    // Returns null when counting is disabled or perf cannot be started
+    static PerfCounters start(boolean currentThreadOnly) {
+        if (!ENABLED) return null;
+        try {
+            String target = currentThreadOnly
+                ? new File("/proc/thread-self").getCanonicalFile().getName()
+                : String.valueOf(ProcessHandle.current().pid());
+            Process perf = new ProcessBuilder("perf", "stat", "-x", ",",
+                    "-e", String.join(",", EVENTS), currentThreadOnly ? "-t" : "-p", target)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            Thread.sleep(ATTACH_DELAY_MS);
+            if (!perf.isAlive()) {
+                System.out.println("perf stat exited: " + new String(perf.getErrorStream().readAllBytes()).trim());
+                return null;
+            }
+            return new PerfCounters(perf);
+        } catch (IOException e) {
+            System.out.println("Cannot run perf: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // perf stat only prints its counts on SIGINT; missing or unsupported events are -1
+    Map<String, Long> stop() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (String event : EVENTS) values.put(event, -1L);
+        try {
+            new ProcessBuilder("kill", "-INT", String.valueOf(perf.pid())).start().waitFor();
+            try (BufferedReader err = new BufferedReader(new InputStreamReader(perf.getErrorStream()))) {
+                String line;
+                while ((line = err.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    if (fields.length < 3) continue;
+                    String event = requested(fields[2]);
+                    if (event == null) continue;
+                    try {
+                        values.put(event, Long.parseLong(fields[0]));
+                    } catch (NumberFormatException ignored) { } // <not supported> / <not counted>
+                }
+            }
+            perf.waitFor(5, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            System.out.println("Cannot read perf output: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            perf.destroy();
+        }
+        return values;
+    }
+
+    // The requested event perf reported as name, which may carry a modifier the request did not
+    // (perf adds ":u" when it may only count user space) or lack one it did; null if none
+    private static String requested(String name) {
+        if (EVENTS.contains(name)) return name;
+        String base = withoutModifiers(name);
+        for (String event : EVENTS) {
+            if (withoutModifiers(event).equals(base)) return event;
+        }
+        return null;
+    }
+
+    // "cycles:u" -> "cycles"; a ':' inside a name (tracepoints such as "sched:sched_switch") stays
+    private static String withoutModifiers(String event) {
+        return event.replaceFirst(":[ukhIGHpPSDWe]+$", "");
+    }
+
+    // One line per run: kernel,size,block,threads,time_s,<one column per event>
+    static void appendCsv(String kernel, int size, int bkSize, int threads, double seconds, Map<String, Long> values) {
+        boolean header = !CSV.exists() || CSV.length() == 0;
+        try (PrintWriter w = new PrintWriter(new FileWriter(CSV, true))) {
+            if (header) w.println("kernel,size,block,threads,time_s," + String.join(",", EVENTS));
+            StringBuilder line = new StringBuilder();
+            line.append(kernel).append(',').append(size).append(',').append(bkSize).append(',')
+                .append(threads).append(',').append(String.format("%.6f", seconds));
+            for (String event : EVENTS) {
+                long value = values.getOrDefault(event, -1L);
+                line.append(',').append(value < 0 ? "" : String.valueOf(value));
+            }
+            w.println(line);
+        } catch (IOException e) {
+            System.out.println("Cannot write " + CSV + ": " + e.getMessage());
+        }
+    }
+}
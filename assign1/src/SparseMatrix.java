@@ -0,0 +1,260 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Square sparse matrix in CSR (compressed sparse row) format: the non-zeros of row i
+// are values[rowStart[i] .. rowStart[i + 1]) in columns columns[...]. The CSC form of
+// a matrix is the CSR form of its transpose (see transpose()).
+public class SparseMatrix {
+    // Below this fraction of non-zeros the sparse kernels beat the dense block kernel
+    static final double SPARSE_THRESHOLD = Double.parseDouble(System.getProperty("sparse.threshold", "0.05"));
+    // Rows per fork/join leaf task
+    private static final int ROWS_PER_TASK = 64;
+
+    final int size;
+    final int[] rowStart;
+    final int[] columns;
+    final double[] values;
+
+    SparseMatrix(int size, int[] rowStart, int[] columns, double[] values) {
+        this.size = size;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    static SparseMatrix fromDense(double[] dense, int size) {
+        int nnz = 0;
+        for (double v : dense) if (v != 0.0) nnz++;
+
+        int[] rowStart = new int[size + 1];
+        int[] columns = new int[nnz];
+        double[] values = new double[nnz];
+        int p = 0;
+        for (int i = 0; i < size; i++) {
+            rowStart[i] = p;
+            for (int j = 0; j < size; j++) {
+                double v = dense[i * size + j];
+                if (v != 0.0) {
+                    columns[p] = j;
+                    values[p++] = v;
+                }
+            }
+        }
+        rowStart[size] = p;
+        return new SparseMatrix(size, rowStart, columns, values);
+    }
+
+    static double density(double[] dense) {
+        long nnz = 0;
+        for (double v : dense) if (v != 0.0) nnz++;
+        return dense.length == 0 ? 0.0 : (double) nnz / dense.length;
+    }
+
+    int nonZeros() {
+        return rowStart[size];
+    }
+
+    double density() {
+        return (double) nonZeros() / ((double) size * size);
+    }
+
+    // CSC of this matrix == CSR of the transpose
+    SparseMatrix transpose() {
+        int[] start = new int[size + 1];
+        for (int p = 0; p < nonZeros(); p++) start[columns[p] + 1]++;
+        for (int j = 0; j < size; j++) start[j + 1] += start[j];
+
+        int[] next = Arrays.copyOf(start, size);
+        int[] rows = new int[nonZeros()];
+        double[] vals = new double[nonZeros()];
+        for (int i = 0; i < size; i++) {
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                int q = next[columns[p]]++;
+                rows[q] = i;
+                vals[q] = values[p];
+            }
+        }
+        return new SparseMatrix(size, start, rows, vals);
+    }
+
+    // Splits rows [lo, hi) in halves; leaves run rows(from, to) on disjoint rows of the result
+    private abstract static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int lo, hi;
+
+        RowTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        abstract RowTask split(int lo, int hi);
+
+        abstract void rows(int from, int to);
+
+        @Override
+        protected void compute() {
+            if (hi - lo > ROWS_PER_TASK) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(split(lo, mid), split(mid, hi));
+            } else {
+                rows(lo, hi);
+            }
+        }
+    }
+
+    // SpMM: dense C += this (sparse) * dense B, the line algorithm over the non-zeros of A only
+    void multDense(double[] matrixB, double[] matrixC, ForkJoinPool pool) {
+        pool.invoke(new SpmmTask(matrixB, matrixC, 0, size));
+    }
+
+    private class SpmmTask extends RowTask {
+        private static final long serialVersionUID = 1L;
+        private final double[] matrixB, matrixC;
+
+        SpmmTask(double[] matrixB, double[] matrixC, int lo, int hi) {
+            super(lo, hi);
+            this.matrixB = matrixB;
+            this.matrixC = matrixC;
+        }
+
+        @Override
+        RowTask split(int lo, int hi) {
+            return new SpmmTask(matrixB, matrixC, lo, hi);
+        }
+
+        @Override
+        void rows(int from, int to) {
+            for (int i = from; i < to; i++) {
+                for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                    double temp = values[p];
+                    int rowB = columns[p] * size;
+                    for (int j = 0; j < size; j++) {
+                        matrixC[i * size + j] += temp * matrixB[rowB + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // Dense C += dense A * B, where this is B in CSC form (B.transpose()): each element of C is
+    // a row of A, read in order, gathered at the non-zeros of one column of B
+    void multDenseByCsc(double[] matrixA, double[] matrixC, ForkJoinPool pool) {
+        pool.invoke(new CscTask(matrixA, matrixC, 0, size));
+    }
+
+    private class CscTask extends RowTask {
+        private static final long serialVersionUID = 1L;
+        private final double[] matrixA, matrixC;
+
+        CscTask(double[] matrixA, double[] matrixC, int lo, int hi) {
+            super(lo, hi);
+            this.matrixA = matrixA;
+            this.matrixC = matrixC;
+        }
+
+        @Override
+        RowTask split(int lo, int hi) {
+            return new CscTask(matrixA, matrixC, lo, hi);
+        }
+
+        // rows of A and C; the rows of this are the columns of B
+        @Override
+        void rows(int from, int to) {
+            for (int i = from; i < to; i++) {
+                int rowA = i * size;
+                for (int j = 0; j < size; j++) {
+                    double sum = 0.0;
+                    for (int p = rowStart[j]; p < rowStart[j + 1]; p++) {
+                        sum += matrixA[rowA + columns[p]] * values[p];
+                    }
+                    matrixC[rowA + j] += sum;
+                }
+            }
+        }
+    }
+
+    // SpGEMM: sparse C = this * B (Gustavson). Each task keeps a dense accumulator for one row
+    // plus the list of columns it touched; rows are computed in parallel and packed at the end.
+    SparseMatrix multSparse(SparseMatrix matrixB, ForkJoinPool pool) {
+        int[][] rowColumns = new int[size][];
+        double[][] rowValues = new double[size][];
+
+        pool.invoke(new SpgemmTask(matrixB, rowColumns, rowValues, 0, size));
+
+        int[] start = new int[size + 1];
+        for (int i = 0; i < size; i++) start[i + 1] = start[i] + rowColumns[i].length;
+        int[] cols = new int[start[size]];
+        double[] vals = new double[start[size]];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(rowColumns[i], 0, cols, start[i], rowColumns[i].length);
+            System.arraycopy(rowValues[i], 0, vals, start[i], rowValues[i].length);
+        }
+        return new SparseMatrix(size, start, cols, vals);
+    }
+
+    // never serialized, like every fork/join task here; SparseMatrix itself is not Serializable
+    @SuppressWarnings("serial")
+    private class SpgemmTask extends RowTask {
+        private static final long serialVersionUID = 1L;
+        private final SparseMatrix matrixB;
+        private final int[][] rowColumns;
+        private final double[][] rowValues;
+
+        SpgemmTask(SparseMatrix matrixB, int[][] rowColumns, double[][] rowValues, int lo, int hi) {
+            super(lo, hi);
+            this.matrixB = matrixB;
+            this.rowColumns = rowColumns;
+            this.rowValues = rowValues;
+        }
+
+        @Override
+        RowTask split(int lo, int hi) {
+            return new SpgemmTask(matrixB, rowColumns, rowValues, lo, hi);
+        }
+
+        @Override
+        void rows(int from, int to) {
+            double[] accumulator = new double[size];
+            boolean[] used = new boolean[size];
+            int[] touched = new int[size];
+
+            for (int i = from; i < to; i++) {
+                int count = 0;
+                for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                    double temp = values[p];
+                    int k = columns[p];
+                    for (int q = matrixB.rowStart[k]; q < matrixB.rowStart[k + 1]; q++) {
+                        int j = matrixB.columns[q];
+                        if (!used[j]) {
+                            used[j] = true;
+                            touched[count++] = j;
+                        }
+                        accumulator[j] += temp * matrixB.values[q];
+                    }
+                }
+
+                Arrays.sort(touched, 0, count);
+                int[] cols = new int[count];
+                double[] vals = new double[count];
+                int n = 0;
+                for (int t = 0; t < count; t++) {
+                    int j = touched[t];
+                    if (accumulator[j] != 0.0) {
+                        cols[n] = j;
+                        vals[n++] = accumulator[j];
+                    }
+                    accumulator[j] = 0.0;
+                    used[j] = false;
+                }
+                rowColumns[i] = Arrays.copyOf(cols, n);
+                rowValues[i] = Arrays.copyOf(vals, n);
+            }
+        }
+    }
+
+    double get(int i, int j) {
+        int p = Arrays.binarySearch(columns, rowStart[i], rowStart[i + 1], j);
+        return p >= 0 ? values[p] : 0.0;
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Recursive Strassen multiplication: 7 half-size products per level instead of 8.
+// Below the cutoff the tiled block kernel takes over. The 7 products of the first
+// parallelDepth levels run in parallel on the pool, each into its own buffer; deeper levels
+// run sequentially through a single product buffer that is added into C as soon as it is done.
+// All operand sums, products and padding buffers are allocated once per size and
+// reused by every recursion level and every call. parallelDepth is lowered for a size whose
+// buffers would take more than half the heap.
+public class Strassen {
+    // Operands of each product: quadrant of the left term, quadrant of the right term
+    // (-1 = none) and sign of the right term. Quadrants: 0 = 11, 1 = 12, 2 = 21, 3 = 22.
+    //   M1 = (A11 + A22)(B11 + B22)   M2 = (A21 + A22) B11   M3 = A11 (B12 - B22)
+    //   M4 = A22 (B21 - B11)          M5 = (A11 + A12) B22   M6 = (A21 - A11)(B11 + B12)
+    //   M7 = (A12 - A22)(B21 + B22)
+    private static final int[][] A_TERMS = {{0, 3, 1}, {2, 3, 1}, {0, -1, 0}, {3, -1, 0}, {0, 1, 1}, {2, 0, -1}, {1, 3, -1}};
+    private static final int[][] B_TERMS = {{0, 3, 1}, {0, -1, 0}, {1, 3, -1}, {2, 0, -1}, {3, -1, 0}, {0, 1, 1}, {2, 3, 1}};
+    // Where each product goes: quadrant of C and sign, in pairs.
+    //   C11 = M1 + M4 - M5 + M7   C12 = M3 + M5   C21 = M2 + M4   C22 = M1 - M2 + M3 + M6
+    private static final int[][] C_TERMS = {{0, 1, 3, 1}, {2, 1, 3, -1}, {1, 1, 3, 1}, {0, 1, 2, 1}, {0, -1, 1, 1}, {3, 1}, {0, 1}};
+
+    private final ForkJoinPool pool;
+    private final int cutoff;
+    private final int bkSize;
+    private final int parallelDepth;
+
+    private int size = -1;
+    private int padded;
+    // parallelDepth, or less if its buffers would not fit
+    private int parallelLevels;
+    private double[] paddedA, paddedB, paddedC;
+    private Workspace root;
+
+    public Strassen(ForkJoinPool pool, int cutoff, int bkSize, int parallelDepth) {
+        this.pool = pool;
+        this.cutoff = Math.max(1, cutoff);
+        this.bkSize = bkSize;
+        this.parallelDepth = parallelDepth;
+    }
+
+    private static class Workspace {
+        final double[][] left, right, products;
+        final Workspace[] children;
+
+        Workspace(int size, int leaf, int depth, int parallelDepth) {
+            int half = size / 2;
+            int slots = depth < parallelDepth ? 7 : 1;
+            left = new double[slots][half * half];
+            right = new double[slots][half * half];
+            products = new double[slots][half * half];
+            if (half > leaf) {
+                children = new Workspace[slots];
+                for (int s = 0; s < slots; s++) children[s] = new Workspace(half, leaf, depth + 1, parallelDepth);
+            } else {
+                children = null;
+            }
+        }
+
+        // doubles a Workspace(size, leaf, depth, parallelDepth) allocates
+        static long doubles(int size, int leaf, int depth, int parallelDepth) {
+            int half = size / 2;
+            int slots = depth < parallelDepth ? 7 : 1;
+            long total = 3L * slots * half * half;
+            if (half > leaf) total += slots * doubles(half, leaf, depth + 1, parallelDepth);
+            return total;
+        }
+    }
+
+    // Sizes the buffers for n x n matrices: n is padded up to leaf * 2^levels, with leaf <= cutoff
+    private void prepare(int n) {
+        if (n == size) return;
+        int levels = 0;
+        while ((n + (1 << levels) - 1) >> levels > cutoff) levels++;
+        int leaf = (n + (1 << levels) - 1) >> levels;
+
+        size = n;
+        padded = leaf << levels;
+        if (padded != n) {
+            paddedA = new double[padded * padded];
+            paddedB = new double[padded * padded];
+            paddedC = new double[padded * padded];
+        } else {
+            paddedA = paddedB = paddedC = null;
+        }
+        long budget = Runtime.getRuntime().maxMemory() / 2 / Double.BYTES;
+        parallelLevels = parallelDepth;
+        while (parallelLevels > 0 && levels > 0 && Workspace.doubles(padded, leaf, 0, parallelLevels) > budget) parallelLevels--;
+        if (parallelLevels < parallelDepth) {
+            System.err.println("Strassen: parallel depth lowered to " + parallelLevels + " for n = " + n + " to fit the heap");
+        }
+        root = levels > 0 ? new Workspace(padded, leaf, 0, parallelLevels) : null;
+    }
+
+    // matrixC = matrixA * matrixB (matrixC is overwritten)
+    public void multiply(double[] matrixA, double[] matrixB, double[] matrixC, int n) {
+        prepare(n);
+        double[] a = matrixA, b = matrixB, c = matrixC;
+        if (paddedA != null) {
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(matrixA, i * n, paddedA, i * padded, n);
+                System.arraycopy(matrixB, i * n, paddedB, i * padded, n);
+            }
+            a = paddedA;
+            b = paddedB;
+            c = paddedC;
+        }
+
+        double[] fa = a, fb = b, fc = c;
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                multiply(root, fa, fb, fc, padded, 0);
+            }
+        });
+
+        if (paddedA != null) {
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(paddedC, i * padded, matrixC, i * n, n);
+            }
+        }
+    }
+
+    private void multiply(Workspace ws, double[] a, double[] b, double[] c, int n, int depth) {
+        if (ws == null) {
+            java.util.Arrays.fill(c, 0, n * n, 0.0);
+            MatrixMultiplication.multBlock(a, b, c, n, bkSize);
+            return;
+        }
+
+        int half = n / 2;
+        if (depth < parallelLevels) {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[7];
+            for (int p = 0; p < 7; p++) {
+                int product = p;
+                tasks[p] = new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        product(ws, product, product, a, b, n, half, depth);
+                    }
+                };
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            java.util.Arrays.fill(c, 0, n * n, 0.0);
+            for (int p = 0; p < 7; p++) {
+                product(ws, p, 0, a, b, n, half, depth);
+                accumulate(c, n, half, ws.products[0], C_TERMS[p]);
+            }
+            return;
+        }
+
+        double[][] m = ws.products;
+        combine(c, n, 0, half, m[0], 1, m[3], 1, m[4], -1, m[6], 1);
+        combine(c, n, 1, half, m[2], 1, m[4], 1, null, 0, null, 0);
+        combine(c, n, 2, half, m[1], 1, m[3], 1, null, 0, null, 0);
+        combine(c, n, 3, half, m[0], 1, m[1], -1, m[2], 1, m[5], 1);
+    }
+
+    private void product(Workspace ws, int p, int slot, double[] a, double[] b, int n, int half, int depth) {
+        double[] left = ws.left[slot], right = ws.right[slot];
+        sum(a, n, half, A_TERMS[p], left);
+        sum(b, n, half, B_TERMS[p], right);
+        multiply(ws.children == null ? null : ws.children[slot], left, right, ws.products[slot], half, depth + 1);
+    }
+
+    // Adds m, with its sign, into each quadrant of c listed in terms
+    private static void accumulate(double[] c, int n, int half, double[] m, int[] terms) {
+        for (int t = 0; t < terms.length; t += 2) {
+            int base = offset(terms[t], n, half);
+            double sign = terms[t + 1];
+            for (int i = 0; i < half; i++) {
+                int row = base + i * n;
+                for (int j = 0; j < half; j++) {
+                    c[row + j] += sign * m[i * half + j];
+                }
+            }
+        }
+    }
+
+    // dst = quadrant term[0] of src + term[2] * quadrant term[1] of src
+    private static void sum(double[] src, int n, int half, int[] term, double[] dst) {
+        int first = offset(term[0], n, half);
+        if (term[1] < 0) {
+            for (int i = 0; i < half; i++) {
+                System.arraycopy(src, first + i * n, dst, i * half, half);
+            }
+            return;
+        }
+        int second = offset(term[1], n, half);
+        double sign = term[2];
+        for (int i = 0; i < half; i++) {
+            for (int j = 0; j < half; j++) {
+                dst[i * half + j] = src[first + i * n + j] + sign * src[second + i * n + j];
+            }
+        }
+    }
+
+    // Quadrant q of c = s1 * m1 + s2 * m2 (+ s3 * m3 + s4 * m4)
+    private static void combine(double[] c, int n, int q, int half,
+                                double[] m1, double s1, double[] m2, double s2,
+                                double[] m3, double s3, double[] m4, double s4) {
+        int base = offset(q, n, half);
+        for (int i = 0; i < half; i++) {
+            int row = base + i * n;
+            for (int j = 0; j < half; j++) {
+                int k = i * half + j;
+                double v = s1 * m1[k] + s2 * m2[k];
+                if (m3 != null) v += s3 * m3[k] + s4 * m4[k];
+                c[row + j] = v;
+            }
+        }
+    }
+
+    private static int offset(int quadrant, int n, int half) {
+        return (quadrant / 2) * half * n + (quadrant % 2) * half;
+    }
+}
@@ -0,0 +1,87 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD version of the block kernel, using the incubating Vector API.
+// Needs "--add-modules jdk.incubator.vector" both in javac and java; when the module
+// is missing MatrixMultiplication never loads this class and uses the scalar kernel.
+public class VectorKernel {
+
+    // Widest shape the CPU supports (4 doubles on AVX2, 8 on AVX-512)
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // Same register width, twice the lanes
+    static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    // matrixC must be zeroed by the caller
+    static void multBlock(double[] matrixA, double[] matrixB, double[] matrixC, int size, int bkSize) {
+        for (int ii = 0; ii < size; ii += bkSize) {
+            for (int kk = 0; kk < size; kk += bkSize) {
+                for (int jj = 0; jj < size; jj += bkSize) {
+                    int jEnd = Math.min(jj + bkSize, size);
+                    int jBound = jj + SPECIES.loopBound(jEnd - jj);
+
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        int rowC = i * size;
+
+                        for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                            DoubleVector temp = DoubleVector.broadcast(SPECIES, matrixA[rowC + k]);
+                            int rowB = k * size;
+
+                            int j = jj;
+                            for (; j < jBound; j += SPECIES.length()) {
+                                DoubleVector b = DoubleVector.fromArray(SPECIES, matrixB, rowB + j);
+                                DoubleVector c = DoubleVector.fromArray(SPECIES, matrixC, rowC + j);
+                                b.fma(temp, c).intoArray(matrixC, rowC + j);
+                            }
+                            if (j < jEnd) {
+                                VectorMask<Double> tail = SPECIES.indexInRange(j, jEnd);
+                                DoubleVector b = DoubleVector.fromArray(SPECIES, matrixB, rowB + j, tail);
+                                DoubleVector c = DoubleVector.fromArray(SPECIES, matrixC, rowC + j, tail);
+                                b.fma(temp, c).intoArray(matrixC, rowC + j, tail);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // float version: matrixC must be zeroed by the caller
+    static void multBlock(float[] matrixA, float[] matrixB, float[] matrixC, int size, int bkSize) {
+        for (int ii = 0; ii < size; ii += bkSize) {
+            for (int kk = 0; kk < size; kk += bkSize) {
+                for (int jj = 0; jj < size; jj += bkSize) {
+                    int jEnd = Math.min(jj + bkSize, size);
+                    int jBound = jj + FLOAT_SPECIES.loopBound(jEnd - jj);
+
+                    for (int i = ii; i < Math.min(ii + bkSize, size); i++) {
+                        int rowC = i * size;
+
+                        for (int k = kk; k < Math.min(kk + bkSize, size); k++) {
+                            FloatVector temp = FloatVector.broadcast(FLOAT_SPECIES, matrixA[rowC + k]);
+                            int rowB = k * size;
+
+                            int j = jj;
+                            for (; j < jBound; j += FLOAT_SPECIES.length()) {
+                                FloatVector b = FloatVector.fromArray(FLOAT_SPECIES, matrixB, rowB + j);
+                                FloatVector c = FloatVector.fromArray(FLOAT_SPECIES, matrixC, rowC + j);
+                                b.fma(temp, c).intoArray(matrixC, rowC + j);
+                            }
+                            if (j < jEnd) {
+                                VectorMask<Float> tail = FLOAT_SPECIES.indexInRange(j, jEnd);
+                                FloatVector b = FloatVector.fromArray(FLOAT_SPECIES, matrixB, rowB + j, tail);
+                                FloatVector c = FloatVector.fromArray(FLOAT_SPECIES, matrixC, rowC + j, tail);
+                                b.fma(temp, c).intoArray(matrixC, rowC + j, tail);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
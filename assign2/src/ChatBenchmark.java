@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// In-process load generator for ChatServer: thousands of simulated clients, each on its own
+// virtual thread, drive ClientSession directly (no sockets or TLS), so what is measured is the
+// contention on the server's shared state: logins, /rooms, /join and room broadcasts. The last
+// phase puts every client in one room and has a few of them chat, to measure broadcast fan-out.
+// With "binary" the clients negotiate Protocol.BINARY and send frames instead of lines. With
+// "locked" the server keeps its sessions and rooms behind one lock each, as before they became
+// concurrent maps, so the two can be compared on the same machine.
+//
+// Usage: java ChatBenchmark [clients] [rooms] [opsPerClient] [senders] [text|binary] [concurrent|locked]
+public class ChatBenchmark {
+
+    // Connection that only counts what it would have sent
+    private static class CountingConnection implements ChatServer.Connection {
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        public void send(byte[] message) {
+            received.incrementAndGet();
+            bytes.addAndGet(message.length);
+        }
+
+        public void close() { }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int ops = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        boolean binary = args.length > 4 && args[4].equals("binary");
+        boolean locked = args.length > 5 && args[5].equals("locked");
+
+        // users are imported from a scratch file into a scratch database; the password hash is
+        // made cheap unless asked otherwise, since what is measured is contention, not PBKDF2
+        Path scratch = Files.createTempDirectory("chat-bench");
+        File users = scratch.resolve("users.txt").toFile();
+        try (PrintWriter w = new PrintWriter(users)) {
+            for (int i = 0; i < clients; i++) w.println("user" + i + ":pass" + i);
+        }
+        System.setProperty("chat.users", users.getPath());
+        System.setProperty("chat.users.db", scratch.resolve("users.db").toString());
+        if (System.getProperty("chat.users.iterations") == null) System.setProperty("chat.users.iterations", "1");
+        // every client logs in at once, so let them all queue for the hashers rather than be turned away
+        if (System.getProperty("chat.users.queue") == null) System.setProperty("chat.users.queue", Integer.toString(clients));
+        System.setProperty("chat.history.dir", scratch.resolve("history").toString());
+        System.setProperty("chat.sessions.log", scratch.resolve("sessions.log").toString());
+        if (locked) System.setProperty("chat.maps", "locked");
+        ChatServer server = new ChatServer();
+
+        System.out.printf("Clients: %d, rooms: %d, ops per client: %d, %s protocol, %s maps%n",
+            clients, roomCount, ops, binary ? "binary" : "text", locked ? "locked" : "concurrent");
+
+        CountingConnection[] connections = new CountingConnection[clients];
+        for (int i = 0; i < clients; i++) connections[i] = new CountingConnection();
+
+        List<ChatServer.ClientSession> sessions = new ArrayList<>();
+        long loginNanos = run(clients, i -> {
+            ChatServer.ClientSession session = server.new ClientSession(connections[i]);
+            session.start();
+            if (binary) session.onLine(Protocol.NEGOTIATE);
+            send(session, binary, Protocol.AUTH, "1");
+            send(session, binary, Protocol.AUTH, "user" + i);
+            send(session, binary, Protocol.AUTH, "pass" + i);
+            session.awaitIdle();
+            send(session, binary, Protocol.JOIN, "room" + (i % roomCount));
+            synchronized (sessions) { sessions.add(session); }
+        });
+        report("login + join", clients * 4L, loginNanos);
+
+        // mostly room lookups and create-or-join, which hit the registry, plus some chat traffic
+        long churnNanos = run(clients, i -> {
+            ChatServer.ClientSession session = sessions.get(i);
+            for (int op = 0; op < ops; op++) {
+                switch (op % 4) {
+                    case 0: send(session, binary, Protocol.CHAT, "/rooms"); break;
+                    case 1: join(session, binary, "room" + ((i + op) % roomCount)); break;
+                    case 2: join(session, binary, "room" + (i % roomCount)); break;
+                    default: send(session, binary, Protocol.CHAT, "hello " + op); break;
+                }
+            }
+        });
+        report("rooms/join/chat", (long) clients * ops, churnNanos);
+
+        run(clients, i -> join(sessions.get(i), binary, "lobby"));
+        long before = received(connections);
+        long bytesBefore = bytes(connections);
+        int messages = ops;
+        long broadcastNanos = run(senders, i -> {
+            for (int m = 0; m < messages; m++) send(sessions.get(i), binary, Protocol.CHAT, "hello lobby " + m);
+        });
+        long delivered = received(connections) - before;
+        report("lobby messages", (long) senders * messages, broadcastNanos);
+        report("lobby delivered", delivered, broadcastNanos);
+        System.out.printf("%-16s %10.1f bytes per delivered message%n", "lobby bytes", (double) (bytes(connections) - bytesBefore) / delivered);
+
+        for (ChatServer.ClientSession session : sessions) session.close();
+        // nothing left for the shutdown hook to write into the deleted directory
+        RoomHistory.flushAll();
+        try (Stream<Path> files = Files.walk(scratch)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+        System.exit(0);
+    }
+
+    private interface Client {
+        void run(int index) throws Exception;
+    }
+
+    // A line, or in binary the frame a client would send for it
+    private static void send(ChatServer.ClientSession session, boolean binary, byte type, String text) {
+        if (binary) session.onFrame(type, text);
+        else session.onLine(text);
+    }
+
+    private static void join(ChatServer.ClientSession session, boolean binary, String room) {
+        if (binary) session.onFrame(Protocol.JOIN, room);
+        else session.onLine("/join " + room);
+    }
+
+    private static long bytes(CountingConnection[] connections) {
+        long total = 0;
+        for (CountingConnection c : connections) total += c.bytes.get();
+        return total;
+    }
+
+    private static long received(CountingConnection[] connections) {
+        long total = 0;
+        for (CountingConnection c : connections) total += c.received.get();
+        return total;
+    }
+
+    // Starts every client at once and returns the wall time until the last one finished
+    private static long run(int clients, Client client) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            Thread.startVirtualThread(() -> {
+                try {
+                    start.await();
+                    client.run(index);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - t0;
+    }
+
+    private static void report(String phase, long operations, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-16s %10d ops %8.3f s %12.0f ops/s%n", phase, operations, seconds, operations / seconds);
+    }
+}
@@ -1,38 +1,63 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.time.Duration;
 
 public class ChatServer {
-    private static final String RESET = "\u001B[0m";
-    private static final String BOLD = "\u001B[1m";
-    private static final String YELLOW = "\u001B[33m";
-    private static final String BLUE = "\u001B[34m";
-    private static final String PURPLE = "\u001B[35m";
-    private static final String CYAN = "\u001B[36m";
-
     private static final List<String> LLM_COMMAND = getLLMCommand();
 
+    private static final int HISTORY_PAGE = 20;
+    // longest line or frame a client may send
+    private static final int MAX_INPUT = 64 * 1024;
+
+    private static final String[][] COMMANDS = {
+        {"/rooms", "Show available rooms"},
+        {"/join <roomname>", "Join or create a room"},
+        {"/leave", "Leave the current room"},
+        {"/history", "Show earlier messages (repeat to go further back)"},
+        {"/help", "Show this help menu"},
+        {"exit", "Disconnect from server"},
+    };
+    private static final String[] AI_NOTES = {
+        "Type any message to interact with the AI assistant.",
+        "Create an AI room with name starting with 'AI '",
+    };
+
     private static final Duration SESSION_TTL = Duration.ofMinutes(15);
-    private static final File USER_FILE = new File("users.txt");
+    private static final Path USER_DB = Path.of(System.getProperty("chat.users.db", "users.db"));
+    // plaintext user list of older versions, imported into USER_DB when that is first created
+    private static final File USER_FILE = new File(System.getProperty("chat.users", "users.txt"));
+    // empty keeps sessions in memory only
+    private static final String SESSION_LOG = System.getProperty("chat.sessions.log", "sessions.log");
 
-    private final Map<String, UserSession> sessions = new HashMap<>();
-    private final Lock sessionsLock = new ReentrantLock();
+    // -Dchat.maps=locked puts sessions and rooms behind one lock each, as they were before they
+    // became concurrent maps: the baseline ChatBenchmark compares against
+    private static final boolean LOCKED_MAPS = "locked".equals(System.getProperty("chat.maps"));
 
-    private final Map<String, ChatRoom> rooms = new HashMap<>();
-    private final Lock roomsLock = new ReentrantLock();
+    // Lookups and create-or-join never take a global lock
+    private final Map<String, UserSession> sessions = registry();
+    private final Map<String, ChatRoom> rooms = registry();
+    private final UserStore users = UserStore.open(USER_DB, USER_FILE);
 
-    private final Map<String, String> userCredentials = new HashMap<>();
-    private final Lock usersLock = new ReentrantLock();
 
+    private final LlmPool llm = new LlmPool(LLM_COMMAND, System.getenv("OLLAMA_URL"), getLLMModel());
+
+    private static String getLLMModel() {
+        String model = System.getenv("OLLAMA_MODEL");
+        return model != null && !model.isBlank() ? model.trim() : "llama2";
+    }
 
     private static List<String> getLLMCommand() {
         String cmd = System.getenv("OLLAMA_CMD");
@@ -43,31 +68,74 @@ public class ChatServer {
     }
 
 
+    // Drops a session SESSION_TTL after it was last used, checking only the sessions falling due
+    private final ExpiryWheel<UserSession> expiry =
+        new ExpiryWheel<UserSession>(SESSION_TTL.toMillis(), 1000, s -> s.lastAccess, this::expired).start();
+
+    // Sessions are restored from the log here, before the server accepts anyone
+    private final SessionLog sessionLog =
+        new SessionLog(SESSION_LOG.isEmpty() ? null : Path.of(SESSION_LOG), this::restore, this::sessionSnapshot).open();
+
+    // Other processes sharing the rooms, if -Dchat.cluster is set; null otherwise
+    private final Cluster cluster = Cluster.configured(new Cluster.Handler() {
+        public void publish(String room, String line, boolean chat) {
+            ChatServer.this.publish(findOrCreateRoom(room), line, chat);
+        }
+
+        public void deliver(String room, String line) {
+            findOrCreateRoom(room).broadcast(line);
+        }
+
+        public void registered(byte[] record) {
+            users.adopt(record);
+        }
+
+        public byte[] users() {
+            return users.records();
+        }
+    });
+
     public ChatServer() {
-        loadUserFile();
-        Thread.startVirtualThread(() -> {
-            try {
-                while (true) {
-                    Thread.sleep(Duration.ofMinutes(1).toMillis());
-                    purgeExpiredSessions();
-                }
-            } catch (InterruptedException ignored) { }
-        });
+        if (cluster != null) users.onRegister(cluster::shareUser);
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java ChatServer <port>");
+            System.out.println("Usage: java ChatServer <port> [nio [loops]]");
             return;
         }
         int port = Integer.parseInt(args[0]);
-        new ChatServer().start(port);
+        System.setProperty("javax.net.ssl.keyStore", "../src/server_keystore.jks");
+        System.setProperty("javax.net.ssl.keyStorePassword", "senhakey");
+        // a standby checks the primary's certificate like a client does
+        if (System.getProperty("javax.net.ssl.trustStore") == null) {
+            System.setProperty("javax.net.ssl.trustStore", "../src/client_truststore.jks");
+            System.setProperty("javax.net.ssl.trustStorePassword", "senhatrust");
+        }
+
+        ChatServer server = new ChatServer();
+        if (server.cluster != null) server.cluster.start();
+        OutboundQueue.startReports();
+        Integer replicationPort = Integer.getInteger("chat.replication.port");
+        if (replicationPort != null) server.sessionLog.serveStandbys(replicationPort);
+        String primary = System.getProperty("chat.replication.primary");
+        if (primary != null) {
+            int colon = primary.lastIndexOf(':');
+            server.sessionLog.followPrimary(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+        }
+        if (args.length > 1 && args[1].equals("nio")) {
+            int loops = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            try {
+                new NioTransport(server, loops).start(port);
+            } catch (IOException | java.security.GeneralSecurityException ex) {
+                ex.printStackTrace();
+            }
+        } else {
+            server.start(port);
+        }
     }
 
     public void start(int port) {
-        System.setProperty("javax.net.ssl.keyStore", "../src/server_keystore.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "senhakey");
-        
         try (SSLServerSocket serverSocket = (SSLServerSocket) 
              SSLServerSocketFactory.getDefault().createServerSocket(port)) {
             System.out.println("Chat server started on port " + port);
@@ -81,336 +149,585 @@ public class ChatServer {
         }
     }
 
-    private void loadUserFile() {
+    private void handleClient(Socket clientSocket) {
+        BlockingConnection connection;
+        ClientSession client;
         try {
-            if (!USER_FILE.exists()) USER_FILE.createNewFile();
-            try (BufferedReader r = new BufferedReader(new FileReader(USER_FILE))) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    String[] p = line.split(":", 2);
-                    if (p.length == 2) userCredentials.put(p[0], p[1]);
+            connection = new BlockingConnection(clientSocket);
+            client = new ClientSession(connection);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        try {
+            // bytes rather than a Reader: after a line asking for BINARY the same stream carries frames
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            client.start();
+
+            while (!client.isClosed()) {
+                if (connection.protocol == Protocol.BINARY) {
+                    int length = Protocol.readLength(in);
+                    if (length < 0) break;
+                    if (length < 1 || length > MAX_INPUT) throw new IOException("Bad frame length " + length);
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    client.onFrame(frame[0], new String(frame, 1, length - 1, StandardCharsets.UTF_8));
+                } else {
+                    String line = readLine(in);
+                    if (line == null) break;
+                    client.onLine(line);
                 }
+                client.awaitIdle();
+                connection.awaitDrained();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (InterruptedException | EOFException ignored) {
+        } catch (IOException ex) {
+            // a socket closed under the reader means the writer evicted a slow consumer
+            if (!client.isClosed() && !clientSocket.isClosed()) ex.printStackTrace();
+        } finally {
+            client.close();
         }
     }
 
-    private void saveUser(String user, String pass) {
-        usersLock.lock();
-        try (PrintWriter w = new PrintWriter(new FileWriter(USER_FILE, true))) {
-            userCredentials.put(user, pass);
-            w.println(user + ":" + pass);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            usersLock.unlock();
+    // Next '\n'-terminated line, without the terminator (and a '\r' before it); null at end of stream.
+    // Bytes past MAX_INPUT are dropped, as NioTransport does
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                break;
+            }
+            if (line.size() < MAX_INPUT) line.write(b);
         }
-        loadUserFile();
+        String s = line.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
     }
 
-    private boolean checkCredentials(String user, String pass) {
-        usersLock.lock();
-        try {
-            return pass.equals(userCredentials.get(user));
-        } finally {
-            usersLock.unlock();
+    // Chat protocol of one connection, fed one line (or, in BINARY, one frame) at a time, so the
+    // same code runs on a thread per connection (handleClient) or on the event loops of NioTransport.
+    //
+    // Password checks finish on the hashing pool; lines that arrive meanwhile are held and
+    // handled, in order, once the check is done. The session lock keeps the two threads apart.
+    class ClientSession {
+        private static final int MAX_HELD = 16;
+
+        private final Connection out;
+        private final Lock lock = new ReentrantLock();
+        private final Condition idle = lock.newCondition();
+        // TEXT until the client negotiates BINARY with its first line
+        private Protocol protocol = Protocol.TEXT;
+        private State state = State.FIRST_LINE;
+        private String username;
+        private UserSession session;
+        private volatile boolean closed;
+
+        // a password is being hashed
+        private boolean waiting;
+        private final ArrayDeque<String> held = new ArrayDeque<>();
+
+        // where /history continues from
+        private ChatRoom historyRoom;
+        private long historyCursor;
+
+        private enum State { FIRST_LINE, OPTION, REGISTER_USERNAME, REGISTER_PASSWORD, USERNAME, PASSWORD, ROOM, CHAT }
+
+        ClientSession(Connection out) {
+            this.out = out;
         }
-    }
 
-    private void handleClient(Socket clientSocket) {
-        UserSession session = null;
-        try (
-            clientSocket;
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        ) {
-            out.println(boxText("CHAT SERVER", '=', 50));
-            out.println(BOLD + CYAN + "WELCOME TO THE CHAT SERVER!" + RESET);
-    
-            String firstLine = in.readLine();
-            if (firstLine == null) return;
-    
-            sessionsLock.lock();
-            
+        void start() {
+            send(protocol.welcome());
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        void onLine(String line) {
+            lock.lock();
             try {
-                UserSession s = sessions.get(firstLine.trim());
-                if (s != null
-                    && Duration.between(s.lastAccess, Instant.now()).compareTo(SESSION_TTL) <= 0) {
-                    s.touch();
-                    session = s;
+                if (closed) return;
+                if (!waiting) {
+                    dispatch(line);
+                } else if (held.size() < MAX_HELD) {
+                    held.add(line);
                 } else {
-                    sessions.remove(firstLine.trim());
+                    close();
                 }
             } finally {
-                sessionsLock.unlock();
+                lock.unlock();
             }
-    
-            String username, password;
-            if (session != null) {
-                out.println("Reconnected in room: " + session.roomName);
-                joinRoom(session.roomName, session.username, out);
-            } else {
-                String option = firstLine.trim();
-                if (!option.equals("1") && !option.equals("2")) {
-                    out.println(YELLOW + "Please select an option:" + RESET);
-                    out.println("1-Login  2-Register:");
-                    option = in.readLine();
-                    if (option == null) return;
-                }
-    
-                if (option.equals("2")) {
-                    while (true) {
-                        out.println("Choose username:");
-                        username = in.readLine();
-                        if (username == null) return;
-                        username = username.trim();
-                        usersLock.lock();
-                        try {
-                            if (userCredentials.containsKey(username)) {
-                                out.println("Username already exists. Please choose another.");
-                                continue; 
-                            }
-                        } finally {
-                            usersLock.unlock();
-                        }
-                        
-                        out.println("Choose password:");
-                        password = in.readLine();
-                        if (password == null) return;
-                        password = password.trim();
-                        
-                        saveUser(username, password);
-                        out.println("Registration successful.");
-                        break;
+        }
+
+        // A frame's text goes the way of a line; only JOIN differs, which in a room stands for /join
+        // (otherwise it answers the room prompt). No frame reaches CHAT while a password is checked
+        void onFrame(byte type, String text) {
+            lock.lock();
+            try {
+                onLine(type == Protocol.JOIN && state == State.CHAT ? "/join " + text : text);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Waits until no password check is running, so a reader thread can stop reading meanwhile
+        void awaitIdle() throws InterruptedException {
+            lock.lock();
+            try {
+                while (waiting && !closed) idle.await();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Runs then once the check completes, followed by the lines held while it ran
+        private void await(CompletableFuture<Boolean> check, Consumer<Boolean> then) {
+            waiting = true;
+            check.whenComplete((ok, ex) -> {
+                lock.lock();
+                try {
+                    waiting = false;
+                    idle.signalAll();
+                    if (closed) return;
+                    if (ex != null) {
+                        System.err.println("Credential check failed: " + ex);
+                        info("The server is busy, please try again later.");
+                        close();
+                        return;
                     }
-                    
-                    out.println("Login");
-                }
-    
-                out.println("Username:");
-                username = in.readLine();
-                out.println("Password:");
-                password = in.readLine();
-                if (username == null || password == null
-                    || !checkCredentials(username.trim(), password.trim())) {
-                    out.println("Authentication failed.");
-                    return;
-                }
-    
-                String token = UUID.randomUUID().toString();
-                session = new UserSession(token, username.trim());
-                sessionsLock.lock();
-                try { sessions.put(token, session); }
-                finally    { sessionsLock.unlock(); }
-                out.println("Authentication successful. Your token: " + token);
-    
-                out.println(boxText("AVAILABLE ROOMS", '-', 40));
-                out.println(CYAN + "Rooms: " + BOLD + getRoomList() + RESET);
-                out.println(YELLOW + "Enter room name to join or create:" + RESET);
-                String roomName = in.readLine();
-                if (roomName == null || roomName.isBlank()) {
-                    out.println("Invalid room. Disconnecting.");
-                    return;
+                    then.accept(ok);
+                    String line;
+                    while (!waiting && !closed && (line = held.poll()) != null) dispatch(line);
+                } finally {
+                    lock.unlock();
                 }
-                session.roomName = roomName.trim();
-                joinRoom(session.roomName, session.username, out);
+            });
+        }
+
+        private void dispatch(String line) {
+            switch (state) {
+                case FIRST_LINE: firstLine(line); break;
+                case OPTION: option(line); break;
+                case REGISTER_USERNAME: registerUsername(line); break;
+                case REGISTER_PASSWORD: registerPassword(line); break;
+                case USERNAME:
+                    username = line;
+                    send(protocol.prompt(Protocol.PASSWORD));
+                    state = State.PASSWORD;
+                    break;
+                case PASSWORD: password(line); break;
+                case ROOM: room(line); break;
+                case CHAT: message(line); break;
             }
-    
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.isBlank()) continue;
-    
-                if (message.equalsIgnoreCase("/rooms")) {
-                    out.println(boxText("AVAILABLE ROOMS", '-', 40));
-                    out.println(CYAN + "Rooms: " + BOLD + getRoomList() + RESET);
+        }
+
+        private void firstLine(String firstLine) {
+            if (protocol == Protocol.TEXT && firstLine.equals(Protocol.NEGOTIATE)) {
+                // still a line; everything after it is framed. The client then sends its token or option
+                send(Protocol.TEXT.info(Protocol.ACCEPTED));
+                protocol = Protocol.BINARY;
+                out.use(protocol);
+                return;
+            }
+
+            UserSession s = sessions.get(firstLine.trim());
+            if (s != null) {
+                if (System.currentTimeMillis() - s.lastAccess <= SESSION_TTL.toMillis()) {
+                    s.touch();
+                    sessionLog.touched(s.token, s.lastAccess);
+                    session = s;
+                } else if (sessions.remove(s.token, s)) {
+                    sessionLog.closed(s.token);
                 }
-                else if (message.equalsIgnoreCase("/help")) {
-                    showHelpMenu(out);
+            }
+
+            if (session != null) {
+                send(protocol.reconnected(session.roomName));
+                if (session.roomName != null) {
+                    // catch up on what was said while disconnected
+                    ChatRoom room = findOrCreateRoom(session.roomName);
+                    send(protocol.joined(room.id, room.name));
+                    RoomHistory.Page missed = room.history.replay(Long.MAX_VALUE, HISTORY_PAGE);
+                    for (String line : missed.lines()) send(protocol.line(room.id, line));
+                    joinRoom(session.roomName, session.username, out, protocol);
                 }
-                else if (message.toLowerCase().startsWith("/join ")) {
-                    String newRoom = message.substring(6).trim();
-                    if (newRoom.isEmpty()) {
-                        out.println("Usage: /join <roomName>");
-                    } else {
-                        ChatRoom old = rooms.get(session.roomName);
-                        if (old != null) {
-                            old.removeClient(session.username);
-                            old.broadcast(">> " + session.username + " has left " + session.roomName);
-                        }
-                        session.roomName = newRoom;
-                        joinRoom(newRoom, session.username, out);
-                    }
+                state = State.CHAT;
+                return;
+            }
+
+            String option = firstLine.trim();
+            if (!option.equals("1") && !option.equals("2")) {
+                send(protocol.prompt(Protocol.OPTION));
+                state = State.OPTION;
+                return;
+            }
+            option(option);
+        }
+
+        private void option(String option) {
+            if (option.equals("2")) {
+                send(protocol.prompt(Protocol.NEW_USERNAME));
+                state = State.REGISTER_USERNAME;
+            } else {
+                send(protocol.prompt(Protocol.USERNAME));
+                state = State.USERNAME;
+            }
+        }
+
+        private void registerUsername(String line) {
+            String name = line.trim();
+            if (users.exists(name)) {
+                info("Username already exists. Please choose another.");
+                send(protocol.prompt(Protocol.NEW_USERNAME));
+                return;
+            }
+            username = name;
+            send(protocol.prompt(Protocol.NEW_PASSWORD));
+            state = State.REGISTER_PASSWORD;
+        }
+
+        private void registerPassword(String line) {
+            await(users.register(username, line.trim()), registered -> {
+                if (!registered) {
+                    info("Username already exists. Please choose another.");
+                    send(protocol.prompt(Protocol.NEW_USERNAME));
+                    state = State.REGISTER_USERNAME;
+                    return;
                 }
-                else if (message.equalsIgnoreCase("/leave")) {
-                    ChatRoom curr = rooms.get(session.roomName);
-                    if (curr != null) {
-                        curr.removeClient(session.username);
-                        curr.broadcast(">> " + session.username + " has left " + session.roomName);
-                        session.roomName = null;
-                        out.println("You have left the room. Use /join <room> to join (or create) another.");
-                    } else {
-                        out.println("You are not in any room.");
-                    }
+                info("Registration successful.");
+                info("Login");
+                send(protocol.prompt(Protocol.USERNAME));
+                state = State.USERNAME;
+            });
+        }
+
+        private void password(String password) {
+            await(users.verify(username.trim(), password.trim()), ok -> {
+                if (ok) {
+                    loggedIn();
+                } else {
+                    send(protocol.failed());
+                    close();
                 }
-                else if (message.equalsIgnoreCase("exit")) {
-                    ChatRoom room = rooms.get(session.roomName);
-                    if (room != null) {
-                        room.removeClient(session.username);
-                        room.broadcast(">> " + session.username + " has left " + session.roomName);
-                        session.roomName = null;
+            });
+        }
+
+        private void loggedIn() {
+            String token = UUID.randomUUID().toString();
+            session = new UserSession(token, username.trim());
+            sessions.put(token, session);
+            sessionLog.opened(token, session.lastAccess, session.username, null);
+            expiry.schedule(session);
+            send(protocol.authenticated(token));
+
+            send(protocol.rooms(getRoomList()));
+            send(protocol.prompt(Protocol.ROOM));
+            state = State.ROOM;
+        }
+
+        private void room(String roomName) {
+            if (roomName.isBlank()) {
+                info("Invalid room. Disconnecting.");
+                close();
+                return;
+            }
+            moveTo(session, roomName.trim());
+            enter(session.roomName);
+            state = State.CHAT;
+        }
+
+        private void message(String message) {
+            if (session.touch()) sessionLog.touched(session.token, session.lastAccess);
+            if (message.isBlank()) return;
+
+            if (message.equalsIgnoreCase("/rooms")) {
+                send(protocol.rooms(getRoomList()));
+            }
+            else if (message.equalsIgnoreCase("/help")) {
+                send(protocol.help(COMMANDS, AI_NOTES));
+            }
+            else if (message.equalsIgnoreCase("/history")) {
+                history();
+            }
+            else if (message.toLowerCase().startsWith("/join ")) {
+                String newRoom = message.substring(6).trim();
+                if (newRoom.isEmpty()) {
+                    info("Usage: /join <roomName>");
+                } else {
+                    ChatRoom old = currentRoom();
+                    if (old != null) {
+                        old.removeClient(session.username);
+                        publish(old, ">> " + session.username + " has left " + session.roomName);
                     }
-                    break;
+                    moveTo(session, newRoom);
+                    enter(newRoom);
                 }
-                else {
-                    ChatRoom room = rooms.get(session.roomName);
-                    if (room != null) {
-                        String userLine = session.username + ": " + message;
-                        room.broadcast(userLine);
-    
-                        if (room.isAiRoom) {
-                            String aiResponse = callLLM(message, room.history, room.prompt);
-                            room.broadcast("Bot: " + aiResponse);
-                        }
-                    } else {
-                        out.println("You are not in a room. Use /join <room> first.");
-                    }
+            }
+            else if (message.equalsIgnoreCase("/leave")) {
+                ChatRoom curr = currentRoom();
+                if (curr != null) {
+                    curr.removeClient(session.username);
+                    publish(curr, ">> " + session.username + " has left " + session.roomName);
+                    moveTo(session, null);
+                    send(protocol.joined(0, null));
+                    info("You have left the room. Use /join <room> to join (or create) another.");
+                } else {
+                    info("You are not in any room.");
                 }
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        } finally {
-            if (session != null && session.roomName != null) {
-                ChatRoom room = rooms.get(session.roomName);
+            else if (message.equalsIgnoreCase("exit")) {
+                ChatRoom room = currentRoom();
                 if (room != null) {
-                    room.broadcast(">> " + session.username + " has left " + session.roomName);
                     room.removeClient(session.username);
+                    publish(room, ">> " + session.username + " has left " + session.roomName);
+                    moveTo(session, null);
+                }
+                close();
+            }
+            else {
+                ChatRoom room = currentRoom();
+                if (room != null) {
+                    if (!publish(room, session.username + ": " + message, true)) {
+                        info("The AI is still answering earlier messages in this room, please wait.");
+                    }
+                } else {
+                    info("You are not in a room. Use /join <room> first.");
                 }
             }
         }
-    }
 
-    private List<String> getRoomList() {
-        roomsLock.lock();
-        try {
-            return new ArrayList<>(rooms.keySet());
-        } finally {
-            roomsLock.unlock();
+        // Pages backwards through the room's history, one page per call
+        private void history() {
+            ChatRoom room = currentRoom();
+            if (room == null) {
+                info("You are not in a room. Use /join <room> first.");
+                return;
+            }
+            if (room != historyRoom) {
+                historyRoom = room;
+                historyCursor = Long.MAX_VALUE;
+            }
+            RoomHistory.Page page = room.history.replay(historyCursor, HISTORY_PAGE);
+            if (page.lines().isEmpty()) {
+                info("No earlier messages.");
+                return;
+            }
+            send(protocol.history(room.id, page.lines()));
+            historyCursor = page.first();
         }
-    }
 
-    private ChatRoom joinRoom(String roomName, String clientId, PrintWriter out) {
-        roomsLock.lock();
-        try {
-            ChatRoom room = rooms.get(roomName);
-            boolean isAi = roomName.startsWith("AI ");
-            String prompt = isAi ? roomName.substring(3).trim() : null;
+        // The client learns the room's id before the first line from it
+        private void enter(String roomName) {
+            ChatRoom room = findOrCreateRoom(roomName);
+            send(protocol.joined(room.id, room.name));
+            joinRoom(roomName, session.username, out, protocol);
+        }
 
-            if (room == null) {
-                room = new ChatRoom(roomName, isAi, prompt);
-                rooms.put(roomName, room);
-            }
-            room.addClient(new ClientHandler(clientId, out));
-            if (!"exit".equals(roomName)) room.broadcast(">> " + clientId + " joined the room " + roomName);
-            return room;
-        } finally {
-            roomsLock.unlock();
+        private void send(byte[] message) {
+            if (message != null) out.send(message);
         }
-    }
 
+        private void info(String message) {
+            send(protocol.info(message));
+        }
 
-    private String callLLM(String userMessage, List<String> history, String prompt) {
-        try {
-            ProcessBuilder builder = new ProcessBuilder(LLM_COMMAND);
-            builder.redirectErrorStream(true);
-            Process process = builder.start();
-
-            try (
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))
-            ) {
-                for (String line : history) {
-                    String msg = line.substring(line.indexOf(':') + 1).trim();
-                    if (line.startsWith("Bot:")) {
-                        writer.write("Bot: " + msg + "\n");
-                    } else {
-                        writer.write("User: " + msg + "\n");
+        // ConcurrentHashMap rejects null keys, and roomName is null outside a room
+        private ChatRoom currentRoom() {
+            String name = session.roomName;
+            return name == null ? null : rooms.get(name);
+        }
+
+        // Called once, when the client disconnects or the server ends the session
+        void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                idle.signalAll();
+                // the token stays valid for SESSION_TTL from here
+                if (session != null) {
+                    session.touch();
+                    sessionLog.touched(session.token, session.lastAccess);
+                }
+                if (session != null && session.roomName != null) {
+                    ChatRoom room = currentRoom();
+                    if (room != null) {
+                        publish(room, ">> " + session.username + " has left " + session.roomName);
+                        room.removeClient(session.username);
                     }
                 }
+                out.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void moveTo(UserSession session, String roomName) {
+        session.roomName = roomName;
+        sessionLog.room(session.token, roomName);
+    }
 
-                writer.write("User: " + userMessage + "\n");
-                writer.flush();
-                process.getOutputStream().close();
+    private void expired(UserSession session) {
+        if (sessions.remove(session.token, session)) sessionLog.closed(session.token);
+    }
 
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line).append("\n");
-                }
+    // Applies a record from the session log, at startup or when following a primary
+    private void restore(SessionLog.Entry e) {
+        UserSession s;
+        switch (e.type()) {
+            case SessionLog.OPEN:
+                s = new UserSession(e.token(), e.username(), e.lastAccess());
+                s.roomName = e.room();
+                sessions.put(s.token, s);
+                expiry.schedule(s);
+                break;
+            case SessionLog.ROOM:
+                s = sessions.get(e.token());
+                if (s != null) s.roomName = e.room();
+                break;
+            case SessionLog.TOUCH:
+                s = sessions.get(e.token());
+                if (s != null && e.lastAccess() > s.lastAccess) s.lastAccess = e.lastAccess();
+                break;
+            case SessionLog.CLOSE:
+                sessions.remove(e.token());
+                break;
+        }
+    }
 
-                String resp = response.toString().trim();
+    private static <V> Map<String, V> registry() {
+        return LOCKED_MAPS ? Collections.synchronizedMap(new HashMap<>()) : new ConcurrentHashMap<>();
+    }
 
-                resp = resp.replaceAll("^```+", "")
-                        .replaceAll("```+$", "")
-                        .trim();
-                return resp;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "[Error talking to AI]";
+    private Collection<SessionLog.Entry> sessionSnapshot() {
+        List<SessionLog.Entry> live = new ArrayList<>(sessions.size());
+        // toArray, not an iterator: a locked map only holds its lock for whole calls
+        for (UserSession s : sessions.values().toArray(new UserSession[0])) {
+            live.add(new SessionLog.Entry(SessionLog.OPEN, s.token, s.lastAccess, s.username, s.roomName));
         }
+        return live;
     }
 
-    private void purgeExpiredSessions() {
-        sessionsLock.lock();
-        try {
-            Instant now = Instant.now();
-            Iterator<Map.Entry<String, UserSession>> it = sessions.entrySet().iterator();
-            while (it.hasNext()) {
-                if (Duration.between(it.next().getValue().lastAccess, now).compareTo(SESSION_TTL) > 0) {
-                    it.remove();
-                }
-            }
-        } finally {
-            sessionsLock.unlock();
+    private List<String> getRoomList() {
+        return new ArrayList<>(rooms.keySet());
+    }
+
+    // Finds or creates a room; rooms are never removed, so the room returned stays registered.
+    // A new room recovers its history from disk before it is put in the map, not inside
+    // computeIfAbsent; of two threads creating the same room, the one that loses drops its copy
+    private ChatRoom findOrCreateRoom(String roomName) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) return room;
+        boolean isAi = roomName.startsWith("AI ");
+        ChatRoom created = new ChatRoom(roomName, isAi, isAi ? roomName.substring(3).trim() : null, cluster);
+        room = rooms.putIfAbsent(roomName, created);
+        if (room == null) return created;
+        created.history.close();
+        return room;
+    }
+
+    private ChatRoom joinRoom(String roomName, String clientId, Connection out, Protocol protocol) {
+        ChatRoom room = findOrCreateRoom(roomName);
+        room.addClient(new ClientHandler(clientId, out, protocol));
+        if (!"exit".equals(roomName)) publish(room, ">> " + clientId + " joined the room " + roomName);
+        return room;
+    }
+
+    private void publish(ChatRoom room, String line) {
+        publish(room, line, false);
+    }
+
+    // Sends a line to everyone in the room; chat marks a user's chat line, which an AI room answers.
+    // In cluster mode only the room's owner records and sends lines: elsewhere the line goes to the
+    // owner, which sends it back to every node with members in the room, this one included.
+    // Returns false if the AI of the room has too many messages waiting already.
+    private boolean publish(ChatRoom room, String line, boolean chat) {
+        if (cluster != null && !cluster.owns(room.name)) {
+            cluster.forward(room.name, line, chat);
+            return true;
+        }
+        room.broadcast(line);
+        if (cluster != null) cluster.fanOut(room.name, line);
+
+        // queued for the LLM workers: the reader (or event loop) never waits for the model
+        if (chat && room.isAiRoom) {
+            room.context.user(line);
+            return llm.submit(room, room.context, reply -> publish(room, "Bot: " + reply));
         }
+        return true;
     }
 
+
     private static class UserSession {
         final String token;
         final String username;
-        String roomName;
-        Instant lastAccess;
+        volatile String roomName;
+        // epoch millis; written without locking on every use, read by the expiry wheel
+        volatile long lastAccess;
+        // lastAccess as the session log last recorded it
+        private volatile long logged;
 
         UserSession(String token, String user) {
+            this(token, user, System.currentTimeMillis());
+        }
+
+        UserSession(String token, String user, long lastAccess) {
             this.token = token;
             this.username = user;
-            this.lastAccess = Instant.now();
+            this.lastAccess = lastAccess;
+            this.logged = lastAccess;
         }
 
-        void touch() {
-            lastAccess = Instant.now();
+        // Returns true when the log should record lastAccess again: at least every SESSION_TTL / 2
+        // of use, so a session restored after a restart or on a standby never expires while its
+        // client is still active
+        boolean touch() {
+            long now = System.currentTimeMillis();
+            lastAccess = now;
+            if (now - logged <= SESSION_TTL.toMillis() / 2) return false;
+            logged = now;
+            return true;
         }
     }
 
     private static class ChatRoom {
+        // what BINARY clients know the room by, so its name is not repeated in every frame
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        final int id = ids.incrementAndGet();
         final String name;
         final boolean isAiRoom;
         final String prompt;
-        final List<String> history = new ArrayList<>();
-        final Lock clientsLock = new ReentrantLock();
-        final List<ClientHandler> clients = new ArrayList<>();
-
-        ChatRoom(String name, boolean isAiRoom, String prompt) {
+        final RoomHistory history;
+        // what the model sees of the room, null unless isAiRoom
+        final ContextWindow context;
+
+        // Copy-on-write member list: joins and leaves (rare) copy the array under clientsLock and
+        // publish it through the volatile field; broadcasts (frequent) just read the current array
+        private final Lock clientsLock = new ReentrantLock();
+        private volatile ClientHandler[] clients = new ClientHandler[0];
+        // told when the room gains its first local member and loses its last, null outside a cluster
+        private final Cluster cluster;
+
+        ChatRoom(String name, boolean isAiRoom, String prompt, Cluster cluster) {
             this.name = name;
             this.isAiRoom = isAiRoom;
             this.prompt = prompt;
+            this.cluster = cluster;
+            this.history = RoomHistory.open(name);
+            this.context = isAiRoom ? new ContextWindow(name, prompt, history.recent()) : null;
         }
 
         void addClient(ClientHandler c) {
             clientsLock.lock();
             try {
-                clients.add(c);
+                ClientHandler[] next = Arrays.copyOf(clients, clients.length + 1);
+                next[next.length - 1] = c;
+                clients = next;
+                if (next.length == 1 && cluster != null) cluster.subscribe(name);
             } finally {
                 clientsLock.unlock();
             }
@@ -419,79 +736,159 @@ public class ChatServer {
         void removeClient(String id) {
             clientsLock.lock();
             try {
-                clients.removeIf(c -> c.clientId.equals(id));
+                ClientHandler[] current = clients;
+                ClientHandler[] next = new ClientHandler[current.length];
+                int n = 0;
+                for (ClientHandler c : current) {
+                    if (!c.clientId.equals(id)) next[n++] = c;
+                }
+                if (n < current.length) {
+                    clients = Arrays.copyOf(next, n);
+                    if (n == 0 && cluster != null) cluster.unsubscribe(name);
+                }
             } finally {
                 clientsLock.unlock();
             }
         }
 
+        // No room-wide lock: lines sent at the same time by two members may be recorded in one
+        // order and reach some members in the other. Each sender's own lines keep their order
         void broadcast(String msg) {
-            String formattedMsg = msg;
-            if (msg.startsWith(">>")) {
-                formattedMsg = BLUE + msg + RESET;
-            } else if (msg.startsWith("Bot:")) {
-                formattedMsg = PURPLE + msg + RESET;
+            history.append(msg);
+            // the message is encoded once per protocol and the same bytes go to every member speaking it
+            byte[][] encoded = new byte[Protocol.values().length][];
+            for (ClientHandler c : clients) {
+                int p = c.protocol.ordinal();
+                if (encoded[p] == null) encoded[p] = c.protocol.line(id, msg);
+                c.send(encoded[p]);
             }
-            
-            synchronized (history) {
-                history.add(msg);
-            }
-            clientsLock.lock();
+        }
+    }
+
+    // Output side of one client connection, implemented by each transport. send takes a message
+    // already encoded by the session's Protocol and may be called from any thread; close flushes
+    // what was already sent first. use tells the transport the client negotiated another protocol,
+    // which changes how it reads input.
+    interface Connection {
+        void send(byte[] message);
+
+        void close();
+
+        default void use(Protocol protocol) { }
+    }
+
+    // Thread-per-connection transport: one virtual thread writes the queued messages in order.
+    // It takes whatever has piled up since its last write (optionally lingering a few
+    // microseconds for more, -Dchat.write.linger=<us>), copies the batch into one reusable
+    // buffer and writes it at once, so a busy room costs one TLS record and one syscall per
+    // batch instead of per line.
+    private static class BlockingConnection implements Connection {
+        private static final int MAX_BATCH = 256;
+        private static final long LINGER_MICROS = Long.getLong("chat.write.linger", 0);
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final OutboundQueue queue = new OutboundQueue();
+        private volatile boolean closed;
+        // read by handleClient to tell lines from frames
+        volatile Protocol protocol = Protocol.TEXT;
+
+        // writer thread only; 16KB is the largest TLS record payload
+        private final List<byte[]> batch = new ArrayList<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+        BlockingConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            Thread.startVirtualThread(this::writeLoop);
+        }
+
+        private void writeLoop() {
             try {
-                for (ClientHandler c : clients) {
-                    c.send(formattedMsg);
+                byte[] first;
+                while ((first = queue.take()) != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    // linger only when the queue was otherwise empty: under load batches form on their own.
+                    // Yielding rather than a timed wait, which on a busy carrier oversleeps by milliseconds
+                    if (LINGER_MICROS > 0 && batch.size() == 1) {
+                        long deadline = System.nanoTime() + LINGER_MICROS * 1000;
+                        while (batch.size() < MAX_BATCH && System.nanoTime() < deadline) {
+                            if (queue.drainTo(batch, MAX_BATCH - batch.size()) == 0) Thread.yield();
+                        }
+                    }
+                    // raw bytes rather than a PrintWriter: its monitor would pin the carrier
+                    // thread during the TLS handshake, which deadlocks with a single core
+                    for (byte[] msg : batch) {
+                        if (msg.length > buffer.remaining()) writeBuffer();
+                        if (msg.length > buffer.capacity()) out.write(msg);
+                        else buffer.put(msg);
+                    }
+                    batch.clear();
+                    writeBuffer();
+                    out.flush();
                 }
+            } catch (InterruptedException | IOException ignored) {
             } finally {
-                clientsLock.unlock();
+                try { socket.close(); } catch (IOException ignored) { }
+                queue.close();
+                if (queue.dropped() > 0) {
+                    System.out.println("Client " + socket.getRemoteSocketAddress() + ": " + queue.stats());
+                }
             }
         }
+
+        private void writeBuffer() throws IOException {
+            if (buffer.position() == 0) return;
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        public void send(byte[] message) {
+            if (closed || queue.offer(message)) return;
+            // slow consumer under the disconnect policy: closing the socket also ends the reader
+            System.out.println("Disconnecting slow client " + socket.getRemoteSocketAddress() + ": " + queue.stats());
+            closed = true;
+            queue.close();
+            queue.clear();
+            try {
+                // the writer holds the TLS record lock while stuck on the full socket: with SO_LINGER 0
+                // close() gives up on close_notify at once instead of waiting for that lock
+                socket.setSoLinger(true, 0);
+                socket.close();
+            } catch (IOException ignored) { }
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            queue.close();
+        }
+
+        public void use(Protocol protocol) {
+            this.protocol = protocol;
+            queue.use(protocol);
+        }
+
+        void awaitDrained() throws InterruptedException {
+            queue.awaitDrained();
+        }
     }
 
     private static class ClientHandler {
         
-        private final PrintWriter out;
+        private final Connection out;
         private final String clientId;
-        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        private final Protocol protocol;
         
-        ClientHandler(String clientId, PrintWriter out) {
+        ClientHandler(String clientId, Connection out, Protocol protocol) {
             this.clientId = clientId;
             this.out = out;
-            Thread.startVirtualThread(() -> {
-                try {
-                    while (true) {
-                        String msg = queue.take();
-                        out.println(msg);
-                    }
-                } catch (InterruptedException ignored) { }
-            });
+            this.protocol = protocol;
         }
 
-        void send(String message) {
-            queue.offer(message);
+        void send(byte[] message) {
+            out.send(message);
         }
     }
-
-    private String boxText(String text, char borderChar, int width) {
-        StringBuilder box = new StringBuilder();
-        String border = String.valueOf(borderChar).repeat(width);
-        
-        box.append(BOLD + PURPLE + border + RESET + "\n");
-        box.append(BOLD + BLUE + " " + text + " " + RESET + "\n");
-        box.append(BOLD + PURPLE + border + RESET);
-        
-        return box.toString();
-    }
-    
-    private void showHelpMenu(PrintWriter out) {
-        out.println(boxText("HELP MENU", '-', 50));
-        out.println(BOLD + "Available Commands:" + RESET);
-        out.println(YELLOW + "/rooms" + RESET + " - Show available rooms");
-        out.println(YELLOW + "/join <roomname>" + RESET + " - Join or create a room");
-        out.println(YELLOW + "/leave" + RESET + " - Leave the current room");
-        out.println(YELLOW + "/help" + RESET + " - Show this help menu");
-        out.println(YELLOW + "exit" + RESET + " - Disconnect from server");
-        out.println(BOLD + "In AI rooms:" + RESET);
-        out.println("Type any message to interact with the AI assistant.");
-        out.println("Create an AI room with name starting with 'AI '");
-    }
 }
@@ -1,6 +1,9 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -10,8 +13,18 @@ public class ChatClient {
     private static final String BOLD = "\u001B[1m";
     private static final String GREEN = "\u001B[32m";
     private static final String YELLOW = "\u001B[33m";
+    private static final String BLUE = "\u001B[34m";
+    private static final String PURPLE = "\u001B[35m";
+    private static final String CYAN = "\u001B[36m";
+
+    // binary frames unless -Dchat.protocol=text (the line protocol of older versions)
+    private static final boolean BINARY = !"text".equals(System.getProperty("chat.protocol"));
+    private static final String NEGOTIATE = "CHAT/2 binary";
+    private static final String ACCEPTED = "CHAT/2 binary ok";
+    private static final byte AUTH = 1, JOIN = 2, CHAT = 3, SYSTEM = 4, BOT = 5, PROMPT = 6, ROOMS = 7, HISTORY = 8, HELP = 9;
+    private static final byte OK = 0, FAILED = 1, RECONNECTED = 2;
+    private static final byte OPTION = 0, USERNAME = 1, PASSWORD = 2, NEW_USERNAME = 3, NEW_PASSWORD = 4, ROOM = 5;
 
-    
     private static final String TOKEN_FILE = System.getProperty("user.dir") + "/token.txt";
     private static final Duration TOKEN_TTL = Duration.ofMinutes(15);
 
@@ -24,10 +37,16 @@ public class ChatClient {
         String serverAddress = args[0];
         int port = Integer.parseInt(args[1]);
 
+        Scanner scanner = new Scanner(System.in);
+        // text when asked for, or when the server turns out to be older than the binary protocol
+        if (BINARY && new ChatClient().run(serverAddress, port, scanner)) {
+            scanner.close();
+            return;
+        }
         try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverAddress, port);
              BufferedReader in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
              PrintWriter    out = new PrintWriter(socket.getOutputStream(), true);
-             Scanner scanner    = new Scanner(System.in)) {
+             scanner) {
 
             String welcome = in.readLine();
             if (welcome == null) return;
@@ -68,7 +87,7 @@ public class ChatClient {
                 }
             }
 
-                       Thread reader = new Thread(() -> {
+            Thread reader = new Thread(() -> {
                 try {
                     String msg;
                     while ((msg = in.readLine()) != null) {
@@ -93,6 +112,226 @@ public class ChatClient {
         }
     }
 
+    // Binary protocol: the server says exactly when to read a line (PROMPT) and the client does
+    // all the formatting. Room names are learnt from JOIN frames, later frames carry only the id
+    private final Map<Integer, String> rooms = new ConcurrentHashMap<>();
+    private volatile int room;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    // Returns false, having read nothing from the user, if the server does not speak the binary protocol
+    private boolean run(String serverAddress, int port, Scanner scanner) throws IOException {
+        try (SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(serverAddress, port)) {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // the server greets in text first; everything after its answer is framed. A server
+            // older than the binary protocol takes NEGOTIATE for a bad option and prompts instead
+            out.write((NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String line;
+            while (!ACCEPTED.equals(line = readLine())) {
+                if (line == null) return true;
+                if (line.endsWith(":")) return false;
+            }
+            System.out.println(box("CHAT SERVER", '=', 50));
+            System.out.println(BOLD + CYAN + "WELCOME TO THE CHAT SERVER!" + RESET);
+
+            String token = readToken();
+            if (token != null) System.out.println("Reconnecting automatically...");
+            send(AUTH, token != null ? token : "");
+
+            // until the client is in a room (or back in its session) every frame is answered here
+            while (true) {
+                DataInputStream frame = readFrame();
+                if (frame == null) return true;
+                byte type = frame.readByte();
+                if (type == PROMPT) {
+                    byte field = frame.readByte();
+                    System.out.println(label(field));
+                    send(field == ROOM ? JOIN : AUTH, scanner.nextLine());
+                } else if (type == AUTH) {
+                    byte status = frame.readByte();
+                    String value = string(frame);
+                    if (status == FAILED) {
+                        System.out.println("Authentication failed.");
+                        System.out.println("Exiting.");
+                        return true;
+                    }
+                    if (status == OK) {
+                        saveToken(value);
+                        System.out.println("Authentication successful.");
+                    } else {
+                        System.out.println("Reconnected in room: " + (value.isEmpty() ? "none" : value));
+                        if (value.isEmpty()) break;
+                    }
+                } else {
+                    show(type, frame);
+                    if (type == JOIN) break;
+                }
+            }
+
+            Thread reader = new Thread(() -> {
+                try {
+                    DataInputStream frame;
+                    while ((frame = readFrame()) != null) {
+                        byte type = frame.readByte();
+                        if (type == HISTORY) {
+                            varint(frame);
+                            System.out.println(box("HISTORY", '-', 40));
+                            int lines = varint(frame);
+                            for (int i = 0; i < lines; i++) {
+                                DataInputStream next = readFrame();
+                                if (next == null) return;
+                                show(next.readByte(), next);
+                            }
+                        } else {
+                            show(type, frame);
+                        }
+                    }
+                } catch (IOException ignored) { }
+            });
+            reader.setDaemon(true);
+            reader.start();
+
+            while (true) {
+                String name = rooms.get(room);
+                System.out.print(BOLD + (name != null ? name : "") + "> " + RESET);
+                String msg = scanner.nextLine();
+                if (msg.equalsIgnoreCase("exit")) {
+                    deleteToken();
+                    System.out.println(GREEN + "Bye!" + RESET);
+                    send(CHAT, "exit");
+                    break;
+                }
+                if (msg.toLowerCase().startsWith("/join ")) send(JOIN, msg.substring(6).trim());
+                else send(CHAT, msg);
+            }
+        }
+        return true;
+    }
+
+    private void show(byte type, DataInputStream frame) throws IOException {
+        switch (type) {
+            case JOIN: {
+                int id = varint(frame);
+                String name = string(frame);
+                if (id != 0) rooms.put(id, name);
+                room = id;
+                break;
+            }
+            case CHAT:
+                System.out.println(rest(frame));
+                break;
+            case SYSTEM: {
+                // room notices in blue, messages to this client alone as they are
+                boolean inRoom = varint(frame) != 0;
+                String text = rest(frame);
+                System.out.println(inRoom ? BLUE + text + RESET : text);
+                break;
+            }
+            case BOT:
+                System.out.println(PURPLE + "Bot: " + rest(frame) + RESET);
+                break;
+            case ROOMS: {
+                int n = varint(frame);
+                StringBuilder names = new StringBuilder();
+                for (int i = 0; i < n; i++) names.append(i == 0 ? "" : ", ").append(string(frame));
+                System.out.println(box("AVAILABLE ROOMS", '-', 40));
+                System.out.println(CYAN + "Rooms: " + BOLD + "[" + names + "]" + RESET);
+                break;
+            }
+            case HELP: {
+                System.out.println(box("HELP MENU", '-', 50));
+                System.out.println(BOLD + "Available Commands:" + RESET);
+                int n = varint(frame);
+                for (int i = 0; i < n; i++) System.out.println(YELLOW + string(frame) + RESET + " - " + string(frame));
+                System.out.println(BOLD + "In AI rooms:" + RESET);
+                n = varint(frame);
+                for (int i = 0; i < n; i++) System.out.println(string(frame));
+                break;
+            }
+            case PROMPT:
+                System.out.println(label(frame.readByte()));
+                break;
+        }
+    }
+
+    private static String label(byte field) {
+        switch (field) {
+            case OPTION: return YELLOW + "Please select an option:" + RESET + "\n1-Login  2-Register:";
+            case USERNAME: return "Username:";
+            case PASSWORD: return "Password:";
+            case NEW_USERNAME: return "Choose username:";
+            case NEW_PASSWORD: return "Choose password:";
+            default: return YELLOW + "Enter room name to join or create:" + RESET;
+        }
+    }
+
+    private static String box(String text, char borderChar, int width) {
+        String border = String.valueOf(borderChar).repeat(width);
+        return BOLD + PURPLE + border + RESET + "\n" + BOLD + BLUE + " " + text + " " + RESET + "\n" + BOLD + PURPLE + border + RESET;
+    }
+
+    // [varint length][type][UTF-8 text]; the main thread and the input loop never send at once
+    private void send(byte type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length + 1;
+        while ((length & ~0x7F) != 0) {
+            out.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+        out.writeByte(type);
+        out.write(bytes);
+        out.flush();
+    }
+
+    // The next frame, starting at its type; null at the end of the stream
+    private DataInputStream readFrame() throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) return null;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    private static int varint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    // [varint length][UTF-8]
+    private static String string(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[varint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // UTF-8 up to the end of the frame
+    private static String rest(DataInputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return null;
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
     private static String readToken() {
         File f = new File(TOKEN_FILE);
         if (!f.exists()) return null;
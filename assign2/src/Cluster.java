@@ -0,0 +1,417 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+// Cluster mode: several ChatServer processes, each with its own clients, sharing the rooms.
+//
+//   -Dchat.cluster=host:port,host:port,...  inter-node address of every node, the same list on all
+//   -Dchat.cluster.node=<i>                 which of them this process is
+//
+// Each room has an owner node, picked by consistent hashing of the room name onto a ring with
+// -Dchat.cluster.vnodes points per node. The owner orders the room: a node that has a line for
+// a room it does not own forwards it (PUB), and the owner records it and sends it (MSG) to every
+// node subscribed to the room, the sender included, so all members see the same order. A node
+// subscribes (SUB) while it has local members in the room, so a line crosses the network once
+// per interested node, not once per member. AI rooms are answered by their owner.
+//
+// Nodes talk over mutual TLS, so only a process holding the servers' key (javax.net.ssl.keyStore)
+// can join, with length-prefixed binary frames
+//   [int length][byte type][payload]
+// The first frame on a link must be HELLO, which says which node is on the other end.
+// One outgoing link per peer, with a writer that sends whatever has queued up (up to 64KB) in
+// one write. Links reconnect every second; frames for a peer that is down are dropped, and
+// subscriptions are sent again when it comes back. Registrations are shared with every node,
+// so a user can log in anywhere: as they happen, and all of them again whenever a link comes
+// up, since registrations made while it was down were dropped with the other frames (the
+// receiver skips the users it already has).
+final class Cluster {
+    static final int VNODES = Integer.getInteger("chat.cluster.vnodes", 64);
+    static final int MAX_QUEUED = Integer.getInteger("chat.cluster.queue", 65536);
+    private static final int BATCH_BYTES = 1 << 16;
+
+    private static final byte HELLO = 0, SUB = 1, UNSUB = 2, PUB = 3, MSG = 4, USER = 5;
+
+    // What the cluster asks of the local server
+    interface Handler {
+        // a line for a room this node owns, from another node; chat is true for a user's chat line
+        void publish(String room, String line, boolean chat);
+
+        // a line the owner of a room sends to every subscribed node
+        void deliver(String room, String line);
+
+        // a user registered on another node (a UserStore record)
+        void registered(byte[] record);
+
+        // every user known here, as UserStore records back to back
+        byte[] users();
+    }
+
+    private final int self;
+    private final List<String> addresses;
+    private final Handler handler;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+    private final Link[] links;
+
+    // owner side: nodes subscribed to each room this node owns
+    private final Map<String, Set<Integer>> subscribers = new ConcurrentHashMap<>();
+    // member side: rooms owned elsewhere that this node has members in
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+    // current incoming connection of each peer
+    private final Map<Integer, Socket> inbound = new ConcurrentHashMap<>();
+
+    private Cluster(int self, List<String> addresses, Handler handler) {
+        this.self = self;
+        this.addresses = addresses;
+        this.handler = handler;
+        for (int node = 0; node < addresses.size(); node++) {
+            for (int v = 0; v < VNODES; v++) ring.put(mix((addresses.get(node) + "#" + v).hashCode()), node);
+        }
+        this.links = new Link[addresses.size()];
+        for (int node = 0; node < links.length; node++) {
+            if (node != self) links[node] = new Link(node);
+        }
+    }
+
+    // null unless -Dchat.cluster is set
+    static Cluster configured(Handler handler) {
+        String nodes = System.getProperty("chat.cluster");
+        if (nodes == null || nodes.isBlank()) return null;
+        List<String> addresses = List.of(nodes.trim().split("\\s*,\\s*"));
+        int self = Integer.getInteger("chat.cluster.node", 0);
+        if (self < 0 || self >= addresses.size()) throw new IllegalArgumentException("chat.cluster.node must be below " + addresses.size());
+        return new Cluster(self, addresses, handler);
+    }
+
+    // Starts accepting peers and connecting to them
+    void start() {
+        int port = port(addresses.get(self));
+        Thread.startVirtualThread(() -> {
+            try (SSLServerSocket server = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port)) {
+                server.setNeedClientAuth(true);
+                System.out.println("Cluster node " + self + " of " + addresses.size() + " listening on port " + port);
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread.startVirtualThread(() -> receive(socket));
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+        for (Link link : links) {
+            if (link != null) Thread.startVirtualThread(link::run);
+        }
+    }
+
+    boolean owns(String room) {
+        return owner(room) == self;
+    }
+
+    private int owner(String room) {
+        Map.Entry<Integer, Integer> e = ring.ceilingEntry(mix(room.hashCode()));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    // Sends a line for a room owned elsewhere to its owner
+    void forward(String room, String line, boolean chat) {
+        links[owner(room)].send(frame(PUB, chat ? 1 : 0, room, line));
+    }
+
+    // Owner side: sends a line to every other node with members in the room
+    void fanOut(String room, String line) {
+        Set<Integer> nodes = subscribers.get(room);
+        if (nodes == null || nodes.isEmpty()) return;
+        byte[] frame = frame(MSG, -1, room, line);
+        for (int node : nodes) links[node].send(frame);
+    }
+
+    // The first local member joined a room / the last one left
+    void subscribe(String room) {
+        if (owns(room)) return;
+        subscribed.add(room);
+        links[owner(room)].send(frame(SUB, -1, room, null));
+    }
+
+    void unsubscribe(String room) {
+        if (owns(room)) return;
+        subscribed.remove(room);
+        links[owner(room)].send(frame(UNSUB, -1, room, null));
+    }
+
+    void shareUser(byte[] record) {
+        byte[] frame = frame(USER, -1, null, null, record);
+        for (Link link : links) {
+            if (link != null) link.send(frame);
+        }
+    }
+
+    // Reads the frames of one peer's link
+    private void receive(Socket socket) {
+        int peer = -1;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BATCH_BYTES))) {
+            while (true) {
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                DataInputStream f = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = f.readByte();
+                if ((type == HELLO) != (peer < 0)) throw new IOException("Cluster frame " + type + " out of order");
+                switch (type) {
+                    case HELLO:
+                        peer = f.readInt();
+                        if (peer < 0 || peer >= links.length || peer == self) throw new IOException("Bad cluster node " + peer);
+                        inbound.put(peer, socket);
+                        // the peer may have restarted and forgotten who subscribed to its rooms
+                        links[peer].resubscribe();
+                        break;
+                    case SUB:
+                        subscribers.computeIfAbsent(string(f), r -> ConcurrentHashMap.newKeySet()).add(peer);
+                        break;
+                    case UNSUB: {
+                        Set<Integer> nodes = subscribers.get(string(f));
+                        if (nodes != null) nodes.remove(peer);
+                        break;
+                    }
+                    case PUB: {
+                        boolean chat = f.readByte() != 0;
+                        handler.publish(string(f), string(f), chat);
+                        break;
+                    }
+                    case MSG:
+                        handler.deliver(string(f), string(f));
+                        break;
+                    case USER: {
+                        // one or more records, each with its own length prefix
+                        ByteBuffer records = ByteBuffer.wrap(f.readAllBytes());
+                        while (records.remaining() >= 4) {
+                            int length = records.getInt(records.position());
+                            if (length < 0 || length > records.remaining() - 4) throw new IOException("Bad user record length " + length);
+                            byte[] record = new byte[4 + length];
+                            records.get(record);
+                            handler.registered(record);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Bad cluster frame type " + type);
+                }
+            }
+        } catch (IOException ex) {
+            // the peer went away; it subscribes again when it reconnects
+        } finally {
+            if (peer >= 0 && inbound.remove(peer, socket)) {
+                for (Set<Integer> nodes : subscribers.values()) nodes.remove(peer);
+            }
+        }
+    }
+
+    // [int length][byte type]([byte flag])([string room])([string line])([raw bytes]), where a
+    // string is [int length][UTF-8 bytes]
+    private static byte[] frame(byte type, int flag, String room, String line, byte[]... raw) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (line == null ? 0 : line.length()));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(type);
+            if (flag >= 0) out.writeByte(flag);
+            if (room != null) string(out, room);
+            if (line != null) string(out, line);
+            for (byte[] r : raw) out.write(r);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(frame.length - 4);
+        return frame;
+    }
+
+    private static void string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String string(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Bad cluster string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    // murmur3 finalizer, to spread String.hashCode over the ring
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    // Outgoing connection to one peer: frames queue up while it is being written or reconnected
+    private final class Link {
+        private final int node;
+        private final Lock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean up;
+        private long dropped;
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        void send(byte[] frame) {
+            lock.lock();
+            try {
+                if (!up || queue.size() >= MAX_QUEUED) {
+                    dropped++;
+                    return;
+                }
+                queue.add(frame);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void run() {
+            String address = addresses.get(node);
+            String host = address.substring(0, address.lastIndexOf(':'));
+            boolean reported = false;
+            while (true) {
+                try (Socket socket = SSLSocketFactory.getDefault().createSocket(host, port(address))) {
+                    OutputStream out = socket.getOutputStream();
+                    socket.setTcpNoDelay(true);
+                    lock.lock();
+                    try {
+                        up = true;
+                        // the hello, our subscriptions and our users go first
+                        queue.clear();
+                        queue.add(hello());
+                        addSubscriptions();
+                        addUsers();
+                        notEmpty.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                    System.out.println("Cluster link to node " + node + " (" + address + ") up");
+                    reported = false;
+                    write(out);
+                } catch (IOException | InterruptedException ex) {
+                    lock.lock();
+                    try {
+                        boolean wasUp = up;
+                        up = false;
+                        queue.clear();
+                        if (wasUp) System.out.println("Cluster link to node " + node + " down (" + dropped + " frames dropped so far)");
+                        else if (!reported) System.out.println("Cluster node " + node + " (" + address + ") unreachable, retrying");
+                        reported = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        void resubscribe() {
+            lock.lock();
+            try {
+                if (up) addSubscriptions();
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // called with the lock held
+        private void addSubscriptions() {
+            for (String room : subscribed) {
+                if (owner(room) == node) queue.add(frame(SUB, -1, room, null));
+            }
+        }
+
+        // called with the lock held; the records go in frames of up to BATCH_BYTES
+        private void addUsers() {
+            ByteBuffer records = ByteBuffer.wrap(handler.users());
+            while (records.remaining() >= 4) {
+                int from = records.position();
+                while (records.remaining() >= 4) {
+                    int next = records.position() + 4 + records.getInt(records.position());
+                    if (next - from > BATCH_BYTES && records.position() > from) break;
+                    records.position(next);
+                }
+                queue.add(frame(USER, -1, null, null, Arrays.copyOfRange(records.array(), from, records.position())));
+            }
+        }
+
+        private byte[] hello() {
+            byte[] frame = frame(HELLO, -1, null, null, new byte[4]);
+            ByteBuffer.wrap(frame).putInt(5, self);
+            return frame;
+        }
+
+        // Batches whatever is queued into one write, until the connection fails
+        private void write(OutputStream out) throws IOException, InterruptedException {
+            byte[] batch = new byte[BATCH_BYTES];
+            List<byte[]> frames = new ArrayList<>();
+            while (true) {
+                lock.lock();
+                try {
+                    while (queue.isEmpty()) notEmpty.await();
+                    int size = 0;
+                    while (!queue.isEmpty() && (frames.isEmpty() || size + queue.peek().length <= BATCH_BYTES)) {
+                        byte[] frame = queue.poll();
+                        size += frame.length;
+                        frames.add(frame);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                int n = 0;
+                for (byte[] frame : frames) {
+                    if (frame.length > batch.length) {
+                        out.write(batch, 0, n);
+                        n = 0;
+                        out.write(frame);
+                    } else {
+                        System.arraycopy(frame, 0, batch, n, frame.length);
+                        n += frame.length;
+                    }
+                }
+                if (n > 0) out.write(batch, 0, n);
+                out.flush();
+                frames.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.net.ssl.SSLSocketFactory;
+
+// Load test for cluster mode: starts 1, 2, ... maxNodes ChatServer processes on localhost, with
+// the same number of clients and rooms per node each time, and measures how many chat lines per
+// second the clients send and how many reach them. With rooms growing with the clients, every
+// room keeps the same number of members, so each line fans out the same way at every cluster
+// size and both rates measure scaling rather than a growing fan-out. Members of every room are
+// spread over all the nodes, so most lines cross the inter-node links. With a core or more per
+// node the throughput should grow about linearly with the nodes; on fewer cores the nodes (and
+// this process, which runs every client) compete.
+//
+// Run from src (it uses the keystores there): java ClusterBenchmark [maxNodes] [clientsPerNode] [roomsPerNode] [messages]
+public class ClusterBenchmark {
+    private static final int CHAT_PORT = 13450;
+    private static final int CLUSTER_PORT = 13500;
+
+    public static void main(String[] args) throws Exception {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int perNode = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int roomsPerNode = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        System.setProperty("javax.net.ssl.trustStore", "client_truststore.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword", "senhatrust");
+        System.out.printf("Clients per node: %d, rooms per node: %d, messages per client: %d%n", perNode, roomsPerNode, messages);
+
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            Path scratch = Files.createTempDirectory("chat-cluster-bench");
+            List<Process> servers = new ArrayList<>();
+            try {
+                start(nodes, perNode, scratch, servers);
+                run(nodes, perNode, nodes * roomsPerNode, messages);
+            } finally {
+                for (Process p : servers) p.destroy();
+                for (Process p : servers) p.waitFor(10, TimeUnit.SECONDS);
+                try (Stream<Path> files = Files.walk(scratch)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    // One process per node, each in its own directory (history, users and sessions are per node)
+    private static void start(int nodes, int perNode, Path scratch, List<Process> servers) throws Exception {
+        StringBuilder cluster = new StringBuilder();
+        for (int i = 0; i < nodes; i++) cluster.append(i == 0 ? "" : ",").append("localhost:").append(CLUSTER_PORT + i);
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < nodes; i++) {
+            Path dir = Files.createDirectories(scratch.resolve("node" + i).resolve("src"));
+            Files.copy(Path.of("server_keystore.jks"), dir.resolve("server_keystore.jks"), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(Path.of("client_truststore.jks"), dir.resolve("client_truststore.jks"), StandardCopyOption.REPLACE_EXISTING);
+            try (PrintWriter w = new PrintWriter(dir.resolve("users.txt").toFile())) {
+                for (int u = 0; u < nodes * perNode; u++) w.println("user" + u + ":pass" + u);
+            }
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dchat.cluster=" + cluster, "-Dchat.cluster.node=" + i,
+                "-Dchat.users.iterations=1", "-Dchat.users.queue=" + nodes * perNode, "-Dchat.queue.capacity=65536",
+                "ChatServer", Integer.toString(CHAT_PORT + i));
+            builder.directory(dir.toFile());
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(dir.resolve("server.log").toFile());
+            servers.add(builder.start());
+        }
+
+        // ready once every node accepts clients and has its links to the others up
+        for (int i = 0; i < nodes; i++) {
+            File log = scratch.resolve("node" + i).resolve("src").resolve("server.log").toFile();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (true) {
+                String text = log.exists() ? Files.readString(log.toPath()) : "";
+                if (text.contains("Chat server started") && text.split(" up\\R", -1).length - 1 >= nodes - 1) break;
+                if (System.nanoTime() > deadline) throw new IOException("Node " + i + " did not start:\n" + text);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void run(int nodes, int perNode, int rooms, int messages) throws Exception {
+        int clients = nodes * perNode;
+        AtomicLong delivered = new AtomicLong();
+        CountDownLatch joined = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Socket> sockets = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++) {
+            Socket socket = SSLSocketFactory.getDefault().createSocket("localhost", CHAT_PORT + i % nodes);
+            sockets.add(socket);
+            String user = "user" + i;
+            Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.startsWith("user") && line.contains(": m")) delivered.incrementAndGet();
+                        else if (line.contains(">> " + user + " joined")) joined.countDown();
+                    }
+                } catch (IOException ignored) { }
+            });
+            reader.setDaemon(true);
+            reader.start();
+
+            OutputStream out = socket.getOutputStream();
+            int index = i;
+            Thread writer = new Thread(() -> {
+                try {
+                    out.write(("1\n" + user + "\npass" + index + "\nroom" + (index % rooms) + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    go.await();
+                    for (int m = 0; m < messages; m++) out.write(("m" + m + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException | InterruptedException ignored) { }
+            });
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if (!joined.await(60, TimeUnit.SECONDS)) throw new IOException(joined.getCount() + " clients did not join");
+
+        // every line reaches every member of its room
+        long expected = 0;
+        for (int r = 0; r < rooms; r++) {
+            long members = clients / rooms + (r < clients % rooms ? 1 : 0);
+            expected += members * members * messages;
+        }
+        long t0 = System.nanoTime();
+        go.countDown();
+        long deadline = t0 + TimeUnit.SECONDS.toNanos(120);
+        while (delivered.get() < expected && System.nanoTime() < deadline) Thread.sleep(5);
+        double seconds = (System.nanoTime() - t0) / 1e9;
+
+        System.out.printf("%d node(s) %6d clients %5d rooms %10d/%d lines delivered %8.3f s %10.0f sent/s %12.0f delivered/s%n",
+            nodes, clients, rooms, delivered.get(), expected, seconds, (double) clients * messages / seconds, delivered.get() / seconds);
+        for (Socket s : sockets) s.close();
+    }
+}
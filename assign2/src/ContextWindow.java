@@ -0,0 +1,142 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// What the model gets to see of an AI room. The newest turns are kept verbatim within a token
+// budget (-Dchat.llm.context, estimated at ~4 characters per token); turns that slide out of
+// the window are folded into a short rolling summary with its own quarter of the budget. The
+// prompt is therefore bounded however long the room has been running.
+//
+// With a backend that can resume from an encoded prefix (Ollama's "context"), the prefix of
+// the previous exchange is cached and only the turns added since are sent. The cache is dropped
+// when it would outgrow the budget or a request fails, and the next prompt is rebuilt in full
+// from the summary and the window.
+final class ContextWindow {
+    static final int BUDGET = Integer.getInteger("chat.llm.context", 2048);
+    private static final int SUMMARY_BUDGET = BUDGET / 4;
+    private static final int SUMMARY_LINE_CHARS = 80;
+
+    // What to send: the text, and the cached prefix it continues (null for a full prompt)
+    record Prompt(String text, String context) { }
+
+    private final Lock lock = new ReentrantLock();
+    private final String system;
+    private final int windowBudget;
+
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private int turnTokens;
+    private final ArrayDeque<String> summary = new ArrayDeque<>();
+    private int summaryTokens;
+
+    // turns not yet part of the cached prefix
+    private final List<String> pending = new ArrayList<>();
+    private String cachedContext;
+    private int cachedTokens;
+    private int replyTokens;
+
+    ContextWindow(String room, String persona, List<String> history) {
+        this.system = "System: You are Bot, the assistant of the chat room \"" + room + "\"."
+            + (persona == null || persona.isBlank() ? "" : " Stay in character as: " + persona + ".")
+            + " Reply briefly to the last User message.\n";
+        this.windowBudget = Math.max(1, BUDGET - SUMMARY_BUDGET - tokens(system));
+        for (String line : history) {
+            if (line.startsWith("Bot:")) reply(line.substring(4).trim());
+            else if (!line.startsWith(">>")) user(line);
+        }
+    }
+
+    static int tokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    // A chat line ("name: message") from a user of the room
+    void user(String line) {
+        int colon = line.indexOf(':');
+        String turn = colon < 0
+            ? "User: " + line
+            : "User (" + line.substring(0, colon).trim() + "): " + line.substring(colon + 1).trim();
+        lock.lock();
+        try {
+            add(turn);
+            pending.add(turn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A line of the bot's reply; it is already part of the prefix the backend hands back
+    void reply(String line) {
+        String turn = "Bot: " + line;
+        lock.lock();
+        try {
+            add(turn);
+            replyTokens += tokens(turn) + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The prompt for the next request, incremental if the backend can resume from a cached prefix;
+    // null if nothing was said since the last one
+    Prompt prompt(boolean incremental) {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) return null;
+            replyTokens = 0;
+            String news = String.join("\n", pending) + "\n";
+            pending.clear();
+            if (incremental && cachedContext != null && cachedTokens + tokens(news) <= BUDGET) {
+                cachedTokens += tokens(news);
+                return new Prompt(news, cachedContext);
+            }
+
+            StringBuilder full = new StringBuilder(system);
+            if (!summary.isEmpty()) {
+                full.append("Summary of the earlier conversation:\n");
+                for (String line : summary) full.append("- ").append(line).append('\n');
+            }
+            for (String turn : turns) full.append(turn).append('\n');
+            cachedContext = null;
+            cachedTokens = tokens(full.toString());
+            return new Prompt(full.toString(), null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The encoded prefix the backend returned after answering, or null if there is none (or the
+    // request failed), in which case the next prompt is sent in full
+    void completed(String context) {
+        lock.lock();
+        try {
+            cachedContext = context;
+            cachedTokens += replyTokens;
+            replyTokens = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private void add(String turn) {
+        turns.add(turn);
+        turnTokens += tokens(turn) + 1;
+        while (turnTokens > windowBudget && turns.size() > 1) {
+            String old = turns.poll();
+            turnTokens -= tokens(old) + 1;
+            summarize(old);
+        }
+    }
+
+    // Extractive rolling summary: the first words of each turn that left the window, newest kept
+    private void summarize(String turn) {
+        String line = turn.length() <= SUMMARY_LINE_CHARS ? turn : turn.substring(0, SUMMARY_LINE_CHARS) + "...";
+        summary.add(line);
+        summaryTokens += tokens(line) + 1;
+        while (summaryTokens > SUMMARY_BUDGET && !summary.isEmpty()) {
+            summaryTokens -= tokens(summary.poll()) + 1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+// Expires items a fixed time after their last access without ever scanning all of them.
+//
+// A hashed timing wheel: one bucket per tick, covering a little more than the time-to-live, and
+// an item sits in the bucket of the tick its deadline falls in. Each tick empties one bucket; an
+// item that was touched since it was scheduled goes back in at its new deadline, otherwise it is
+// expired. Touching an item is just a write of its timestamp, and each item is looked at about
+// once per time-to-live, so the cost per tick is proportional to what actually falls due.
+final class ExpiryWheel<T> {
+    private final long tickMillis;
+    private final long ttlMillis;
+    private final ToLongFunction<T> lastAccess;
+    private final Consumer<T> expire;
+
+    private final Lock lock = new ReentrantLock();
+    private final List<ArrayDeque<T>> buckets;
+    // last tick that was emptied
+    private long cursor;
+
+    ExpiryWheel(long ttlMillis, long tickMillis, ToLongFunction<T> lastAccess, Consumer<T> expire) {
+        this.tickMillis = tickMillis;
+        this.ttlMillis = ttlMillis;
+        this.lastAccess = lastAccess;
+        this.expire = expire;
+        int size = (int) (ttlMillis / tickMillis) + 2;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) buckets.add(new ArrayDeque<>());
+        this.cursor = System.currentTimeMillis() / tickMillis;
+    }
+
+    // Starts the thread that turns the wheel
+    ExpiryWheel<T> start() {
+        Thread.startVirtualThread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(tickMillis);
+                    advance(System.currentTimeMillis());
+                }
+            } catch (InterruptedException ignored) { }
+        });
+        return this;
+    }
+
+    void schedule(T item) {
+        lock.lock();
+        try {
+            add(item, lastAccess.applyAsLong(item) + ttlMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Empties every bucket up to now. The buckets are swapped out under the lock and checked
+    // outside it, so schedule (a login) never waits for a large bucket; expire runs unlocked too.
+    void advance(long now) {
+        List<ArrayDeque<T>> taken = new ArrayList<>();
+        lock.lock();
+        try {
+            while (cursor < now / tickMillis) {
+                cursor++;
+                int i = (int) (cursor % buckets.size());
+                if (!buckets.get(i).isEmpty()) taken.add(buckets.set(i, new ArrayDeque<>()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (taken.isEmpty()) return;
+
+        List<T> later = new ArrayList<>();
+        for (ArrayDeque<T> bucket : taken) {
+            for (T item : bucket) {
+                if (lastAccess.applyAsLong(item) + ttlMillis <= now) expire.accept(item);
+                else later.add(item);
+            }
+        }
+        lock.lock();
+        try {
+            for (T item : later) add(item, lastAccess.applyAsLong(item) + ttlMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private void add(T item, long deadline) {
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        // never into a bucket already emptied, nor so far ahead that it wraps around
+        tick = Math.max(cursor + 1, Math.min(tick, cursor + buckets.size() - 1));
+        buckets.get((int) (tick % buckets.size())).add(item);
+    }
+}
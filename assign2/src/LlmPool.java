@@ -0,0 +1,324 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Answers AI-room messages off the chat threads. Requests are queued per room (each room is
+// answered in order, one request at a time) and a fixed number of workers serve the rooms
+// round-robin, so one chatty room cannot starve the others and the number of concurrent model
+// calls stays bounded whatever the number of rooms.
+//
+// Two backends:
+//  - HTTP (OLLAMA_URL set, e.g. http://localhost:11434): streams /api/generate from the
+//    long-lived Ollama server over kept-alive connections.
+//  - process (default): runs OLLAMA_CMD per request, the way `ollama run` works with piped input.
+//
+// Prompts come from the room's ContextWindow. Ollama hands back the encoded conversation with
+// each reply, which the window caches, so the next request only sends the lines said since.
+//
+// Replies are streamed back line by line as the model produces them, and every request is cut
+// off after -Dchat.llm.timeout seconds.
+final class LlmPool {
+    static final int WORKERS = Integer.getInteger("chat.llm.workers", 2);
+    static final int MAX_PENDING = Integer.getInteger("chat.llm.pending", 8);
+    static final Duration TIMEOUT = Duration.ofSeconds(Long.getLong("chat.llm.timeout", 120));
+
+    private record Request(ContextWindow context, Consumer<String> onLine) { }
+
+    private static final class RoomQueue {
+        final Lock lock = new ReentrantLock();
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        boolean scheduled;
+    }
+
+    private final List<String> command;
+    private final URI url;
+    private final String model;
+    private final HttpClient http;
+
+    private final Map<Object, RoomQueue> queues = new ConcurrentHashMap<>();
+    private final BlockingQueue<RoomQueue> ready = new LinkedBlockingQueue<>();
+
+    LlmPool(List<String> command, String url, String model) {
+        this.command = command;
+        this.url = url == null || url.isBlank() ? null : URI.create(url.replaceAll("/+$", "") + "/api/generate");
+        this.model = model;
+        this.http = this.url == null ? null : HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+        for (int i = 0; i < WORKERS; i++) Thread.startVirtualThread(this::work);
+    }
+
+    // Queues a request for the room and returns at once; false if the room already has
+    // MAX_PENDING requests waiting. The prompt is built when a worker picks the request up, so
+    // it sees the replies to the requests before it.
+    boolean submit(Object room, ContextWindow context, Consumer<String> onLine) {
+        RoomQueue queue = queues.computeIfAbsent(room, r -> new RoomQueue());
+        queue.lock.lock();
+        try {
+            if (queue.pending.size() >= MAX_PENDING) return false;
+            queue.pending.add(new Request(context, onLine));
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                ready.add(queue);
+            }
+            return true;
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                RoomQueue queue = ready.take();
+                Request request;
+                queue.lock.lock();
+                try {
+                    request = queue.pending.poll();
+                } finally {
+                    queue.lock.unlock();
+                }
+
+                if (request != null) {
+                    try {
+                        run(request);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        request.onLine().accept("[Error talking to AI]");
+                    }
+                }
+
+                // one request per turn: the room goes to the back of the line if it has more
+                queue.lock.lock();
+                try {
+                    if (queue.pending.isEmpty()) queue.scheduled = false;
+                    else ready.add(queue);
+                } finally {
+                    queue.lock.unlock();
+                }
+            }
+        } catch (InterruptedException ignored) { }
+    }
+
+    private void run(Request request) throws IOException, InterruptedException {
+        ContextWindow context = request.context();
+        ContextWindow.Prompt prompt = context.prompt(url != null);
+        // an earlier request already answered everything said so far
+        if (prompt == null) return;
+
+        LineStream out = new LineStream(line -> {
+            context.reply(line);
+            request.onLine().accept(line);
+        });
+        String[] encoded = new String[1];
+        boolean finished = false;
+        try {
+            finished = url != null ? generateHttp(prompt, out, encoded) : generateProcess(prompt.text(), out);
+            out.finish();
+        } finally {
+            context.completed(finished ? encoded[0] : null);
+        }
+        if (!finished) request.onLine().accept("[AI timed out]");
+    }
+
+    // Returns false if the request timed out
+    private boolean generateProcess(String prompt, LineStream out) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread watchdog = Thread.startVirtualThread(() -> {
+            try {
+                if (!process.waitFor(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                    timedOut.set(true);
+                    process.descendants().forEach(ProcessHandle::destroyForcibly);
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException ignored) { }
+        });
+
+        try {
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8))) {
+                writer.write(prompt);
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) out.line(line);
+            }
+        } catch (IOException ex) {
+            if (!timedOut.get()) throw ex;
+        } finally {
+            watchdog.interrupt();
+        }
+        process.waitFor();
+        return !timedOut.get();
+    }
+
+    // Returns false if the request timed out; the encoded conversation is left in encoded[0]
+    private boolean generateHttp(ContextWindow.Prompt prompt, LineStream out, String[] encoded) throws IOException, InterruptedException {
+        String body = "{\"model\":" + json(model) + ",\"prompt\":" + json(prompt.text())
+            + (prompt.context() != null ? ",\"context\":" + prompt.context() : "") + ",\"stream\":true}";
+        HttpRequest request = HttpRequest.newBuilder(url)
+            .timeout(TIMEOUT)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        HttpResponse<Stream<String>> response = http.send(request, HttpResponse.BodyHandlers.ofLines());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("LLM server answered " + response.statusCode());
+        }
+
+        // a stalled stream is closed from the watchdog, which ends the iteration below
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Stream<String> lines = response.body();
+        Thread watchdog = Thread.startVirtualThread(() -> {
+            try {
+                Thread.sleep(Duration.ofNanos(deadline - System.nanoTime()));
+                timedOut.set(true);
+                lines.close();
+            } catch (InterruptedException ignored) { }
+        });
+        try {
+            for (String chunk : (Iterable<String>) lines::iterator) {
+                String token = field(chunk, "response");
+                if (token != null) out.text(token);
+                if (isDone(chunk)) {
+                    encoded[0] = array(chunk, "context");
+                    break;
+                }
+            }
+        } catch (RuntimeException ex) {
+            if (!timedOut.get()) throw ex;
+        } finally {
+            watchdog.interrupt();
+            lines.close();
+        }
+        return !timedOut.get();
+    }
+
+    // Turns the model's output into chat lines: blank lines and ``` fences are dropped
+    private static final class LineStream {
+        private final Consumer<String> onLine;
+        private final StringBuilder partial = new StringBuilder();
+
+        LineStream(Consumer<String> onLine) {
+            this.onLine = onLine;
+        }
+
+        void text(String fragment) {
+            for (int i = 0; i < fragment.length(); i++) {
+                char c = fragment.charAt(i);
+                if (c == '\n') {
+                    line(partial.toString());
+                    partial.setLength(0);
+                } else {
+                    partial.append(c);
+                }
+            }
+        }
+
+        void line(String line) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("```")) return;
+            onLine.accept(trimmed);
+        }
+
+        void finish() {
+            if (partial.length() > 0) line(partial.toString());
+            partial.setLength(0);
+        }
+    }
+
+    static String json(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 16).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': b.append("\\\""); break;
+                case '\\': b.append("\\\\"); break;
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                case '\t': b.append("\\t"); break;
+                default:
+                    if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+                    else b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    // Where the value of a top-level field starts in one line of JSON, or -1 if absent
+    private static int valueAt(String json, String name) {
+        String key = "\"" + name + "\":";
+        int i = json.indexOf(key);
+        if (i < 0) return -1;
+        i += key.length();
+        while (i < json.length() && json.charAt(i) == ' ') i++;
+        return i < json.length() ? i : -1;
+    }
+
+    static boolean isDone(String json) {
+        int i = valueAt(json, "done");
+        return i >= 0 && json.startsWith("true", i);
+    }
+
+    // Raw text of a top-level array of numbers in one line of JSON (e.g. "[1,2,3]"), or null if absent
+    static String array(String json, String name) {
+        int i = valueAt(json, name);
+        if (i < 0 || json.charAt(i) != '[') return null;
+        int end = json.indexOf(']', i);
+        return end < 0 ? null : json.substring(i, end + 1);
+    }
+
+    // Value of a top-level string field in one line of JSON, or null if absent
+    static String field(String json, String name) {
+        int i = valueAt(json, name);
+        if (i < 0 || json.charAt(i) != '"') return null;
+
+        StringBuilder b = new StringBuilder();
+        for (i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') return b.toString();
+            if (c != '\\' || i + 1 >= json.length()) {
+                b.append(c);
+                continue;
+            }
+            char e = json.charAt(++i);
+            switch (e) {
+                case 'n': b.append('\n'); break;
+                case 'r': b.append('\r'); break;
+                case 't': b.append('\t'); break;
+                case 'b': b.append('\b'); break;
+                case 'f': b.append('\f'); break;
+                case 'u':
+                    b.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: b.append(e);
+            }
+        }
+        return b.toString();
+    }
+}
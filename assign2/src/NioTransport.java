@@ -0,0 +1,517 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+// Alternative transport for ChatServer: instead of a thread per connection, a few event-loop
+// threads each multiplex their share of the connections with a Selector, using one SSLEngine
+// per connection for TLS. The chat protocol is the same (ChatServer.ClientSession is fed the
+// same lines, or frames once a client negotiates Protocol.BINARY), so clients do not notice the
+// difference.
+//
+// The loops only move bytes. Anything that may block runs on virtual worker threads: the
+// SSLEngine's delegated handshake tasks, and the session itself, which may recover a room's
+// history, append to it or write the session log. Each connection hands its decrypted input
+// to at most one worker at a time, so lines still reach the session in order, and stops
+// reading while more than MAX_INPUT bytes of it wait for the session.
+//
+// Network and application buffers are direct buffers taken from a shared pool only while a
+// connection is actually reading or writing, so idle connections hold no buffers at all.
+public class NioTransport {
+    private static final int MAX_INPUT = 64 * 1024;
+    private static final int MAX_POOLED = 1024;
+
+    private final ChatServer server;
+    private final SSLContext sslContext;
+    private final EventLoop[] loops;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final int packetSize;
+    private final int appSize;
+    private final Queue<ByteBuffer> packetBuffers = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> appBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    NioTransport(ChatServer server, int loopCount) throws IOException, GeneralSecurityException {
+        this.server = server;
+        this.sslContext = SSLContext.getDefault();
+        SSLEngine sample = sslContext.createSSLEngine();
+        this.packetSize = sample.getSession().getPacketBufferSize();
+        this.appSize = sample.getSession().getApplicationBufferSize();
+
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "chat-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Accepts on the calling thread and hands the connections to the loops round-robin
+    void start(int port) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Chat server started on port " + port + " (NIO, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next++ % loops.length].register(channel);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private ByteBuffer acquire(boolean packet) {
+        ByteBuffer buffer = (packet ? packetBuffers : appBuffers).poll();
+        if (buffer != null) pooled.decrementAndGet();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(packet ? packetSize : appSize);
+    }
+
+    private void release(ByteBuffer buffer, boolean packet) {
+        // oversized one-off buffers are left to the GC, and the pool never grows past MAX_POOLED
+        if (!buffer.isDirect() || pooled.get() >= MAX_POOLED) return;
+        buffer.clear();
+        pooled.incrementAndGet();
+        (packet ? packetBuffers : appBuffers).offer(buffer);
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            accepted.offer(channel);
+            selector.wakeup();
+        }
+
+        // Called by any thread that queued output for a connection owned by this loop
+        void schedule(NioConnection connection) {
+            pending.offer(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        open(channel);
+                    }
+                    NioConnection connection;
+                    while ((connection = pending.poll()) != null) {
+                        connection.scheduled.set(false);
+                        connection.resume();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection c = (NioConnection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) c.read();
+                        if (key.isValid() && key.isWritable()) c.flush();
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                NioConnection connection = new NioConnection(this, channel, engine);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                engine.beginHandshake();
+                connection.session.start();
+                connection.flush();
+            } catch (IOException ex) {
+                try { channel.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private class NioConnection implements ChatServer.Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final ChatServer.ClientSession session;
+        private final OutboundQueue outbox = new OutboundQueue();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private SelectionKey key;
+
+        // decrypted input waiting for the session, and whether a worker is handing it over
+        private final Queue<byte[]> input = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inputBytes = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        // no reads while the session is behind, or while the engine's delegated tasks run
+        private volatile boolean paused, tasksRunning;
+
+        // Only the worker draining the input touches these
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        // what the client sends: lines, or frames once it negotiated BINARY
+        private boolean binary;
+        // of the frame being read, -1 while its length is still being read (lengthShift bits so far)
+        private int frameLength = -1;
+        private int lengthBits, lengthShift;
+
+        // pooled, held only while they contain data
+        private ByteBuffer netIn, netOut, appOut;
+
+        private volatile boolean closing, abort, closed;
+
+        NioConnection(EventLoop loop, SocketChannel channel, SSLEngine engine) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+            this.session = server.new ClientSession(this);
+        }
+
+        @Override
+        public void send(byte[] message) {
+            if (closing) return;
+            if (!outbox.offer(message)) {
+                // slow consumer under the disconnect policy: drop what is queued and close now
+                System.out.println("Disconnecting slow client " + channel.socket().getRemoteSocketAddress()
+                    + ": " + outbox.stats());
+                outbox.clear();
+                abort = true;
+                closing = true;
+            }
+            wake();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            wake();
+        }
+
+        // called by the session on the worker, while deliver is handing it input
+        @Override
+        public void use(Protocol protocol) {
+            binary = protocol == Protocol.BINARY;
+            outbox.use(protocol);
+        }
+
+        private void wake() {
+            if (scheduled.compareAndSet(false, true)) loop.schedule(this);
+        }
+
+        // Everything below runs on the loop thread, except drain, deliver and frameComplete
+
+        // After a wake: input held back by a handshake task or a pause may be waiting in netIn
+        void resume() {
+            if (closed) return;
+            if (netIn != null && !paused && !tasksRunning) {
+                try {
+                    unwrap();
+                } catch (IOException ex) {
+                    shutdown();
+                    return;
+                }
+            }
+            flush();
+        }
+
+        void read() {
+            if (closed) return;
+            if (netIn == null) netIn = acquire(true);
+            try {
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    try { engine.closeInbound(); } catch (SSLException ignored) { }
+                    shutdown();
+                    return;
+                }
+                unwrap();
+                if (!closed && inputBytes.get() > MAX_INPUT) {
+                    paused = true;
+                    // the worker may have caught up before it could see paused
+                    if (inputBytes.get() <= MAX_INPUT / 2) paused = false;
+                    interest();
+                }
+            } catch (IOException ex) {
+                shutdown();
+            }
+        }
+
+        private void unwrap() throws IOException {
+            ByteBuffer appIn = acquire(false);
+            try {
+                netIn.flip();
+                while (!closed && !tasksRunning) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    queue(appIn);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        shutdown();
+                        return;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+
+                    HandshakeStatus hs = result.getHandshakeStatus();
+                    if (hs == HandshakeStatus.NEED_TASK) {
+                        // the rest of netIn is unwrapped by resume once the tasks are done
+                        runTasks();
+                        break;
+                    }
+                    if (hs == HandshakeStatus.NEED_WRAP || hs == HandshakeStatus.FINISHED
+                        || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        flush();
+                        if (closed) return;
+                    }
+                    if (!netIn.hasRemaining() && engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP_AGAIN) break;
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() != HandshakeStatus.NEED_TASK) break;
+                }
+            } finally {
+                release(appIn, false);
+                if (netIn != null) {
+                    netIn.compact();
+                    if (netIn.position() == 0) {
+                        release(netIn, true);
+                        netIn = null;
+                    }
+                }
+            }
+        }
+
+        // Hands the decrypted bytes to a worker, unless one is already draining the input
+        private void queue(ByteBuffer appIn) {
+            appIn.flip();
+            if (appIn.hasRemaining()) {
+                byte[] bytes = new byte[appIn.remaining()];
+                appIn.get(bytes);
+                inputBytes.addAndGet(bytes.length);
+                input.offer(bytes);
+                startDraining();
+            }
+            appIn.clear();
+        }
+
+        private void startDraining() {
+            if (draining.compareAndSet(false, true)) workers.execute(this::drain);
+        }
+
+        // On a worker: feeds the input to the session, and closes the session once the connection is closed
+        private void drain() {
+            do {
+                byte[] bytes;
+                while ((bytes = input.poll()) != null) {
+                    if (inputBytes.addAndGet(-bytes.length) <= MAX_INPUT / 2 && paused) {
+                        paused = false;
+                        wake();
+                    }
+                    if (!closing) deliver(bytes);
+                }
+                if (closed) session.close();
+                draining.set(false);
+            } while ((!input.isEmpty() || closed && !session.isClosed()) && draining.compareAndSet(false, true));
+        }
+
+        // Splits the decrypted bytes into lines (or frames) for the session. Like the reader of
+        // a blocking connection, waits for a password check and for the client's own backlog
+        // after each one, so a burst of input does not overflow its queue
+        private void deliver(byte[] bytes) {
+            try {
+                for (int i = 0; i < bytes.length && !closing; i++) {
+                    byte b = bytes[i];
+                    if (binary) {
+                        if (!frameComplete(b)) continue;
+                    } else if (b == '\n') {
+                        String line = partial.toString(StandardCharsets.UTF_8);
+                        partial.reset();
+                        if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                        session.onLine(line);
+                    } else {
+                        if (partial.size() < MAX_INPUT) partial.write(b);
+                        continue;
+                    }
+                    session.awaitIdle();
+                    outbox.awaitDrained();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Hands the session the frame, [varint length][type][text], once its last byte is there
+        private boolean frameComplete(byte b) {
+            if (frameLength < 0) {
+                lengthBits |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if ((b & 0x80) != 0 && lengthShift < 32) return false;
+                frameLength = lengthBits;
+                lengthBits = lengthShift = 0;
+                if (frameLength < 1 || frameLength > MAX_INPUT) {
+                    abort = true;
+                    closing = true;
+                    wake();
+                }
+                return false;
+            }
+            partial.write(b);
+            if (partial.size() < frameLength) return false;
+            byte[] frame = partial.toByteArray();
+            partial.reset();
+            frameLength = -1;
+            session.onFrame(frame[0], new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8));
+            return true;
+        }
+
+        void flush() {
+            if (closed) return;
+            if (abort) {
+                shutdown();
+                return;
+            }
+            try {
+                while (true) {
+                    if (netOut != null && netOut.position() > 0) {
+                        netOut.flip();
+                        channel.write(netOut);
+                        netOut.compact();
+                        if (netOut.position() > 0) {
+                            interest();
+                            return;
+                        }
+                    }
+
+                    HandshakeStatus hs = engine.getHandshakeStatus();
+                    if (hs == HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                        break;
+                    }
+                    if (hs == HandshakeStatus.NEED_UNWRAP || hs == HandshakeStatus.NEED_UNWRAP_AGAIN) break;
+
+                    boolean handshaking = hs == HandshakeStatus.NEED_WRAP;
+                    if (!handshaking) fillAppOut();
+                    boolean hasData = appOut != null && appOut.position() > 0;
+                    if (!handshaking && !hasData) break;
+
+                    if (netOut == null) netOut = acquire(true);
+                    ByteBuffer src = appOut != null ? appOut : ByteBuffer.allocate(0);
+                    src.flip();
+                    SSLEngineResult result = engine.wrap(src, netOut);
+                    src.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        shutdown();
+                        return;
+                    }
+                }
+
+                if (netOut != null && netOut.position() == 0) {
+                    release(netOut, true);
+                    netOut = null;
+                }
+                if (appOut != null && appOut.position() == 0) {
+                    release(appOut, false);
+                    appOut = null;
+                }
+                interest();
+
+                if (closing && outbox.isEmpty() && appOut == null && netOut == null) shutdown();
+            } catch (IOException ex) {
+                shutdown();
+            }
+        }
+
+        // Moves queued messages into appOut while they fit
+        private void fillAppOut() {
+            byte[] bytes;
+            while ((bytes = outbox.peek()) != null) {
+                if (appOut == null) appOut = acquire(false);
+                if (bytes.length > appOut.remaining()) {
+                    if (appOut.position() > 0) return;
+                    // a single message larger than the pooled buffer
+                    ByteBuffer bigger = ByteBuffer.allocate(bytes.length);
+                    release(appOut, false);
+                    appOut = bigger;
+                }
+                appOut.put(bytes);
+                outbox.poll();
+            }
+        }
+
+        // Reads and writes wait until the worker has run the tasks and woken the loop again
+        private void runTasks() {
+            if (tasksRunning) return;
+            tasksRunning = true;
+            interest();
+            workers.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) task.run();
+                tasksRunning = false;
+                wake();
+            });
+        }
+
+        private void interest() {
+            boolean reading = !paused && !tasksRunning;
+            boolean writing = netOut != null && netOut.position() > 0;
+            key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // Sends close_notify (best effort), closes the channel and returns the buffers to the pool
+        private void shutdown() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            if (outbox.dropped() > 0) {
+                System.out.println("Client " + channel.socket().getRemoteSocketAddress() + ": " + outbox.stats());
+            }
+            try {
+                engine.closeOutbound();
+                ByteBuffer out = netOut != null ? netOut : acquire(true);
+                out.clear();
+                engine.wrap(ByteBuffer.allocate(0), out);
+                out.flip();
+                channel.write(out);
+                netOut = out;
+            } catch (IOException ignored) {
+            }
+            try { channel.close(); } catch (IOException ignored) { }
+            if (netIn != null) release(netIn, true);
+            if (netOut != null) release(netOut, true);
+            if (appOut != null) release(appOut, false);
+            netIn = netOut = appOut = null;
+            outbox.close();
+            outbox.clear();
+            // after whatever input the worker still has
+            startDraining();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded ring of messages waiting to be written to one client, each already encoded for the
+// client's Protocol. Any thread may offer (broadcasts, bot replies), one thread consumes (the
+// connection's writer or its event loop).
+//
+// When a client reads slower than its room talks, the ring fills up and the policy decides
+// what gives: the oldest lines (DROP_OLDEST), the overflow, replaced by one notice once the
+// client catches up (COALESCE), or the client itself (DISCONNECT). Either way the memory held
+// for a client never exceeds its capacity.
+//
+// Configured with -Dchat.queue.capacity=<lines> and -Dchat.queue.policy=drop-oldest|coalesce|disconnect.
+// Every -Dchat.queue.report seconds (0 disables) the server prints one line over all the open
+// queues, when any of them has a backlog or has dropped lines since the last report.
+final class OutboundQueue {
+    enum Policy {
+        DROP_OLDEST, COALESCE, DISCONNECT;
+
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.queue.capacity", 1024);
+    static final Policy DEFAULT_POLICY = Policy.parse(System.getProperty("chat.queue.policy", "drop-oldest"));
+    static final long REPORT_SECONDS = Long.getLong("chat.queue.report", 60);
+
+    // queues not closed yet, for report()
+    private static final Set<OutboundQueue> open = ConcurrentHashMap.newKeySet();
+    // dropped lines of the queues closed so far, so report() can tell what is new
+    private static final AtomicLong droppedByClosed = new AtomicLong();
+
+    private final byte[][] ring;
+    private final Policy policy;
+    // how the coalesce notice is encoded, switched when the client negotiates another protocol
+    private volatile Protocol protocol = Protocol.TEXT;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private int head, size;
+    private boolean closed;
+
+    // lines dropped since the last coalesce notice
+    private int skipped;
+
+    // metrics
+    private long enqueued, dropped;
+    private int highWater;
+
+    OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    OutboundQueue(int capacity, Policy policy) {
+        this.ring = new byte[capacity][];
+        this.policy = policy;
+        open.add(this);
+    }
+
+    // Prints report() every REPORT_SECONDS while there is something to say
+    static void startReports() {
+        if (REPORT_SECONDS <= 0) return;
+        Thread.startVirtualThread(() -> {
+            long lastDropped = 0;
+            try {
+                while (true) {
+                    Thread.sleep(Duration.ofSeconds(REPORT_SECONDS));
+                    long dropped = droppedByClosed.get();
+                    int backlogged = 0;
+                    for (OutboundQueue q : open) {
+                        dropped += q.dropped();
+                        if (q.depth() > 0) backlogged++;
+                    }
+                    if (backlogged > 0 || dropped > lastDropped) System.out.println(report());
+                    lastDropped = dropped;
+                }
+            } catch (InterruptedException ignored) { }
+        });
+    }
+
+    // e.g. "Outbound queues: 1200 open, 40 lines queued in 3 (deepest: queued 900, dropped 35, depth 30/1024
+    // (max 1024), drop-oldest), 35 dropped by open queues, 120 by closed ones"
+    static String report() {
+        int count = 0, backlogged = 0;
+        long queued = 0, dropped = 0;
+        OutboundQueue deepest = null;
+        int deepestDepth = 0;
+        for (OutboundQueue q : open) {
+            int depth = q.depth();
+            count++;
+            queued += depth;
+            dropped += q.dropped();
+            if (depth > 0) backlogged++;
+            if (depth > deepestDepth) {
+                deepestDepth = depth;
+                deepest = q;
+            }
+        }
+        return String.format("Outbound queues: %d open, %d lines queued in %d%s, %d dropped by open queues, %d by closed ones",
+            count, queued, backlogged, deepest == null ? "" : " (deepest: " + deepest.stats() + ")", dropped, droppedByClosed.get());
+    }
+
+    // Returns false only under DISCONNECT when the ring is full: the caller should drop the client
+    boolean offer(byte[] message) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (size == ring.length || skipped > 0) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case COALESCE:
+                        // keep what is queued, drop everything new until the client has caught up
+                        skipped++;
+                        dropped++;
+                        return true;
+                    case DROP_OLDEST:
+                        if (size == ring.length) {
+                            ring[head] = null;
+                            head = (head + 1) % ring.length;
+                            size--;
+                            dropped++;
+                        }
+                        break;
+                }
+            }
+            ring[(head + size) % ring.length] = message;
+            size++;
+            enqueued++;
+            if (size > highWater) highWater = size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message, or null if there is none right now
+    byte[] poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message, without removing it
+    byte[] peek() {
+        lock.lock();
+        try {
+            if (size > 0) return ring[head];
+            return skipped > 0 ? notice() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves up to max queued messages into batch without waiting, and returns how many were moved
+    int drainTo(List<byte[]> batch, int max) {
+        lock.lock();
+        try {
+            int n = 0;
+            byte[] message;
+            while (n < max && (message = next()) != null) {
+                batch.add(message);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for a message; null once the queue is closed and drained
+    byte[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && skipped == 0 && !closed) notEmpty.await();
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Backpressure for the client's own reader: waits while the ring is more than half full, so a
+    // client pasting lines faster than its own echo is written does not overflow its own queue
+    void awaitDrained() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size > ring.length / 2 && !closed) drained.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting messages; what is already queued is still handed out
+    void close() {
+        lock.lock();
+        try {
+            if (!closed && open.remove(this)) droppedByClosed.addAndGet(dropped);
+            closed = true;
+            notEmpty.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            Arrays.fill(ring, null);
+            head = size = skipped = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0 && skipped == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // e.g. "queued 1200, dropped 35, depth 0/1024 (max 1024), drop-oldest"
+    String stats() {
+        lock.lock();
+        try {
+            return String.format("queued %d, dropped %d, depth %d/%d (max %d), %s", enqueued, dropped, size,
+                ring.length, highWater, policy.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void use(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    // called with the lock held
+    private byte[] next() {
+        if (size > 0) {
+            byte[] message = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            if (size == ring.length / 2) drained.signalAll();
+            return message;
+        }
+        if (skipped > 0) {
+            byte[] notice = notice();
+            skipped = 0;
+            return notice;
+        }
+        return null;
+    }
+
+    private byte[] notice() {
+        return protocol.info("[" + skipped + " messages skipped: your connection is too slow]");
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// How what the server says is put on the wire for one client.
+//
+// TEXT is the original protocol: newline-delimited lines, formatted with ANSI colours and boxes
+// by the server, with prompts recognisable only by their trailing ':'. Old clients keep it.
+//
+// BINARY is asked for by sending NEGOTIATE as the very first line; the server answers with the
+// line ACCEPTED and from then on both sides send length-prefixed frames
+//   [varint length][byte type][payload]      (length counts the type and the payload)
+// with varints as unsigned LEB128 (7 bits per byte, low bits first). A client frame's payload is
+// one UTF-8 string, up to the end of the frame: AUTH for a token or an answer to an auth prompt,
+// JOIN for a room, CHAT for a chat line or a command. In a server frame numbers are varints and
+// strings are [varint length][UTF-8], except the text that ends a CHAT, BOT or SYSTEM frame,
+// which runs to the end of the frame. Rooms are referred to by an id, interned by the JOIN frame
+// the client gets when it enters the room; CHAT and BOT lines are for the room the client is in.
+// A PROMPT frame tells the client exactly when to read a line and which one. The client does all
+// the formatting, so notices and bot replies travel without escape codes and menus without boxes.
+//
+// Every method returns the complete bytes of one queued message, so a room line is encoded once
+// per protocol and the same array goes to every member speaking it.
+enum Protocol {
+    TEXT {
+        byte[] welcome() {
+            return text(boxText("CHAT SERVER", '=', 50) + "\n" + BOLD + CYAN + "WELCOME TO THE CHAT SERVER!" + RESET);
+        }
+
+        byte[] prompt(byte field) {
+            switch (field) {
+                case OPTION: return text(YELLOW + "Please select an option:" + RESET + "\n1-Login  2-Register:");
+                case USERNAME: return text("Username:");
+                case PASSWORD: return text("Password:");
+                case NEW_USERNAME: return text("Choose username:");
+                case NEW_PASSWORD: return text("Choose password:");
+                default: return text(YELLOW + "Enter room name to join or create:" + RESET);
+            }
+        }
+
+        byte[] info(String message) {
+            return text(message);
+        }
+
+        byte[] authenticated(String token) {
+            return text("Authentication successful. Your token: " + token);
+        }
+
+        byte[] failed() {
+            return text("Authentication failed.");
+        }
+
+        byte[] reconnected(String room) {
+            return text("Reconnected in room: " + room);
+        }
+
+        // the room's own ">> joined" line says it all
+        byte[] joined(int room, String name) {
+            return null;
+        }
+
+        byte[] rooms(Collection<String> names) {
+            return text(boxText("AVAILABLE ROOMS", '-', 40) + "\n" + CYAN + "Rooms: " + BOLD + names + RESET);
+        }
+
+        byte[] line(int room, String line) {
+            return text(format(line));
+        }
+
+        byte[] history(int room, List<String> lines) {
+            StringBuilder page = new StringBuilder(boxText("HISTORY", '-', 40));
+            for (String line : lines) page.append('\n').append(format(line));
+            return text(page.toString());
+        }
+
+        byte[] help(String[][] commands, String[] notes) {
+            StringBuilder help = new StringBuilder(boxText("HELP MENU", '-', 50));
+            help.append('\n').append(BOLD).append("Available Commands:").append(RESET);
+            for (String[] c : commands) help.append('\n').append(YELLOW).append(c[0]).append(RESET).append(" - ").append(c[1]);
+            help.append('\n').append(BOLD).append("In AI rooms:").append(RESET);
+            for (String note : notes) help.append('\n').append(note);
+            return text(help.toString());
+        }
+
+        private byte[] text(String lines) {
+            return (lines + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private String format(String line) {
+            if (line.startsWith(">>")) return BLUE + line + RESET;
+            if (line.startsWith("Bot:")) return PURPLE + line + RESET;
+            return line;
+        }
+
+        private String boxText(String text, char borderChar, int width) {
+            String border = String.valueOf(borderChar).repeat(width);
+            return BOLD + PURPLE + border + RESET + "\n" + BOLD + BLUE + " " + text + " " + RESET + "\n" + BOLD + PURPLE + border + RESET;
+        }
+    },
+
+    BINARY {
+        // the client shows its own welcome once it has switched
+        byte[] welcome() {
+            return null;
+        }
+
+        byte[] prompt(byte field) {
+            return frame(PROMPT, f -> f.put(field));
+        }
+
+        byte[] info(String message) {
+            return frame(SYSTEM, f -> {
+                f.varint(0);
+                f.text(message);
+            });
+        }
+
+        byte[] authenticated(String token) {
+            return auth(OK, token);
+        }
+
+        byte[] failed() {
+            return auth(FAILED, "");
+        }
+
+        byte[] reconnected(String room) {
+            return auth(RECONNECTED, room == null ? "" : room);
+        }
+
+        // room 0 when the client is no longer in any room
+        byte[] joined(int room, String name) {
+            return frame(JOIN, f -> {
+                f.varint(room);
+                f.string(name == null ? "" : name);
+            });
+        }
+
+        byte[] rooms(Collection<String> names) {
+            return frame(ROOMS, f -> {
+                f.varint(names.size());
+                for (String name : names) f.string(name);
+            });
+        }
+
+        byte[] line(int room, String line) {
+            Encoder f = Encoder.get();
+            lineFrame(f, room, line);
+            return f.take();
+        }
+
+        // a HISTORY frame followed by the page's lines, all in one message
+        byte[] history(int room, List<String> lines) {
+            Encoder f = Encoder.get();
+            int start = f.begin(HISTORY);
+            f.varint(room);
+            f.varint(lines.size());
+            f.end(start);
+            for (String line : lines) lineFrame(f, room, line);
+            return f.take();
+        }
+
+        byte[] help(String[][] commands, String[] notes) {
+            return frame(HELP, f -> {
+                f.varint(commands.length);
+                for (String[] c : commands) {
+                    f.string(c[0]);
+                    f.string(c[1]);
+                }
+                f.varint(notes.length);
+                for (String note : notes) f.string(note);
+            });
+        }
+
+        private byte[] auth(byte status, String value) {
+            return frame(AUTH, f -> {
+                f.put(status);
+                f.string(value);
+            });
+        }
+
+        // Room lines are kept as text ("user: message", ">> notice", "Bot: reply") in the history and
+        // between cluster nodes. A chat line goes out as it is and the client shows it as it is;
+        // only bot replies and notices are told apart, for the client to colour them
+        private void lineFrame(Encoder f, int room, String line) {
+            int start;
+            if (line.startsWith("Bot: ")) {
+                start = f.begin(BOT);
+                f.text(line, 5);
+            } else if (line.startsWith(">>") || line.indexOf(": ") <= 0) {
+                start = f.begin(SYSTEM);
+                f.varint(room);
+                f.text(line);
+            } else {
+                start = f.begin(CHAT);
+                f.text(line);
+            }
+            f.end(start);
+        }
+    };
+
+    // first line of a client that wants BINARY, and the server's answer
+    static final String NEGOTIATE = "CHAT/2 binary";
+    static final String ACCEPTED = "CHAT/2 binary ok";
+
+    // frame types; AUTH, JOIN and CHAT are also the client's
+    static final byte AUTH = 1, JOIN = 2, CHAT = 3, SYSTEM = 4, BOT = 5, PROMPT = 6, ROOMS = 7, HISTORY = 8, HELP = 9;
+    // AUTH status
+    static final byte OK = 0, FAILED = 1, RECONNECTED = 2;
+    // what a PROMPT asks for
+    static final byte OPTION = 0, USERNAME = 1, PASSWORD = 2, NEW_USERNAME = 3, NEW_PASSWORD = 4, ROOM = 5;
+
+    private static final String RESET = "\u001B[0m";
+    private static final String BOLD = "\u001B[1m";
+    private static final String YELLOW = "\u001B[33m";
+    private static final String BLUE = "\u001B[34m";
+    private static final String PURPLE = "\u001B[35m";
+    private static final String CYAN = "\u001B[36m";
+
+    // null when the protocol has nothing to send for the event
+    abstract byte[] welcome();
+
+    abstract byte[] prompt(byte field);
+
+    abstract byte[] info(String message);
+
+    abstract byte[] authenticated(String token);
+
+    abstract byte[] failed();
+
+    abstract byte[] reconnected(String room);
+
+    abstract byte[] joined(int room, String name);
+
+    abstract byte[] rooms(Collection<String> names);
+
+    abstract byte[] line(int room, String line);
+
+    abstract byte[] history(int room, List<String> lines);
+
+    abstract byte[] help(String[][] commands, String[] notes);
+
+    private interface Body {
+        void write(Encoder out);
+    }
+
+    private static byte[] frame(byte type, Body body) {
+        Encoder f = Encoder.get();
+        int start = f.begin(type);
+        body.write(f);
+        f.end(start);
+        return f.take();
+    }
+
+    // Builds one message in a per-thread buffer that is reused from message to message, so the
+    // exact-size array take() returns is the only allocation. A length is written in place after
+    // what it measures: one byte is reserved for it, and the bytes are moved up in the rare case
+    // the varint turns out longer.
+    private static final class Encoder {
+        private static final ThreadLocal<Encoder> CURRENT = ThreadLocal.withInitial(Encoder::new);
+        // a buffer grown past this by one large message is not kept
+        private static final int KEEP_BYTES = 1 << 14;
+
+        private byte[] buf = new byte[256];
+        private int pos;
+
+        static Encoder get() {
+            return CURRENT.get();
+        }
+
+        // Starts a frame; pass what it returns to end()
+        int begin(byte type) {
+            int start = pos;
+            ensure(2);
+            pos++;
+            buf[pos++] = type;
+            return start;
+        }
+
+        void end(int start) {
+            length(start);
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        // [varint length][UTF-8]
+        void string(String s) {
+            int start = pos;
+            ensure(1);
+            pos++;
+            text(s, 0);
+            length(start);
+        }
+
+        // UTF-8 with no length, for the last field of a frame
+        void text(String s) {
+            text(s, 0);
+        }
+
+        void text(String s, int from) {
+            ensure(3 * (s.length() - from));
+            for (int i = from; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | c >> 6);
+                    buf[pos++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | cp >> 18);
+                    buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | cp & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired, replaced like String.getBytes does
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xE0 | c >> 12);
+                    buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+
+        // The message built so far; the buffer starts over
+        byte[] take() {
+            byte[] message = Arrays.copyOf(buf, pos);
+            pos = 0;
+            if (buf.length > KEEP_BYTES) buf = new byte[256];
+            return message;
+        }
+
+        // Writes the varint length of the bytes after the reserved byte at start
+        private void length(int start) {
+            int length = pos - start - 1;
+            int size = 1;
+            for (int v = length >>> 7; v != 0; v >>>= 7) size++;
+            if (size > 1) {
+                ensure(size - 1);
+                System.arraycopy(buf, start + 1, buf, start + size, length);
+                pos += size - 1;
+            }
+            int at = start;
+            while ((length & ~0x7F) != 0) {
+                buf[at++] = (byte) ((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            buf[at] = (byte) length;
+        }
+
+        private void ensure(int bytes) {
+            if (pos + bytes > buf.length) buf = Arrays.copyOf(buf, Math.max(2 * buf.length, pos + bytes));
+        }
+    }
+
+    // Length of the client frame that follows, -1 at the end of the stream
+    static int readLength(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Bad frame length");
+    }
+}
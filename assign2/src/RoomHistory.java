@@ -0,0 +1,344 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Message history of one room: the last few lines in a fixed ring on the heap, everything else in
+// an append-only log on disk, so a long-lived room costs a bounded amount of memory and its
+// history survives a restart.
+//
+// The log is a directory per room (history/<SHA-256 hex of the room name>/, with the name itself
+// in a "name" file) of fixed-size segments, each named after the sequence number of its first
+// line and memory-mapped while it is being written. A record is [int length][UTF-8 bytes]; the
+// length is written after the bytes, so a torn append reads as the zero-filled end of the
+// segment. Appending only touches memory: the line goes into the ring and a pending list, and a
+// background thread writes the pending lines to the log and forces it every
+// -Dchat.history.fsync ms (and once more at shutdown), so a crash loses at most that much. Only
+// the newest -Dchat.history.segments segments are kept. If a write fails, the room carries on
+// with the ring alone, as with the log disabled: the log no longer has every line, so its
+// sequence numbers could not be trusted.
+//
+// Lines are numbered from 0 in the order they were appended; replay pages backwards through them.
+final class RoomHistory {
+    static final int RING_LINES = Math.max(1, Integer.getInteger("chat.history.lines", 200));
+    static final int SEGMENT_BYTES = Integer.getInteger("chat.history.segment", 4 << 20);
+    static final int MAX_SEGMENTS = Integer.getInteger("chat.history.segments", 64);
+    static final long FSYNC_MILLIS = Long.getLong("chat.history.fsync", 1000);
+
+    // empty disables the on-disk log (history is then only the ring)
+    static final String DIR = System.getProperty("chat.history.dir", "history");
+
+    private static final Set<RoomHistory> open = ConcurrentHashMap.newKeySet();
+
+    static {
+        if (!DIR.isEmpty()) {
+            Thread.startVirtualThread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(Duration.ofMillis(FSYNC_MILLIS));
+                        for (RoomHistory h : open) h.flush();
+                    }
+                } catch (InterruptedException ignored) { }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(RoomHistory::flushAll));
+        }
+    }
+
+    // Writes what every open history still has pending
+    static void flushAll() {
+        for (RoomHistory h : open) h.flush();
+    }
+
+    // guards the in-memory state below; never held across disk I/O
+    private final Lock lock = new ReentrantLock();
+
+    // ring of the newest lines; line seq lives at ring[seq % ring.length]
+    private final String[] ring = new String[RING_LINES];
+    private long next;
+    // lines [written, next) waiting for the flusher, oldest first
+    private final List<byte[]> pending = new ArrayList<>();
+    private long written;
+    // oldest line still in the log
+    private long first;
+    // no log, or it failed: history is the ring only
+    private boolean ringOnly;
+
+    // on-disk log, null if disabled; segments and active are guarded by diskLock, held by the
+    // flusher while it writes and by replays while they read
+    private final Path dir;
+    private final Lock diskLock = new ReentrantLock();
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private MappedByteBuffer active;
+
+    private RoomHistory(Path dir) {
+        this.dir = dir;
+        this.ringOnly = dir == null;
+    }
+
+    static RoomHistory open(String room) {
+        if (DIR.isEmpty()) return new RoomHistory(null);
+
+        // a digest, not the name: any name gives a valid directory name of the same length
+        Path dir = Path.of(DIR, HexFormat.of().formatHex(digest(room)));
+        RoomHistory history = new RoomHistory(dir);
+        try {
+            history.recover(room);
+        } catch (IOException ex) {
+            // the room still opens, with a history kept in the ring only
+            System.err.println("Cannot open history of " + room + ": " + ex);
+            return new RoomHistory(null);
+        }
+        open.add(history);
+        return history;
+    }
+
+    // For a history opened by a room that lost the race to be created; it has not been appended to
+    void close() {
+        open.remove(this);
+    }
+
+    private static byte[] digest(String room) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(room.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) return;
+
+        lock.lock();
+        try {
+            ring[(int) (next % ring.length)] = line;
+            next++;
+            if (!ringOnly) pending.add(bytes);
+            else written = next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The ring's lines, oldest first
+    List<String> recent() {
+        lock.lock();
+        try {
+            return lines(Math.max(0, next - ring.length), next);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of lines ever appended, which is also the sequence number of the next one
+    long size() {
+        lock.lock();
+        try {
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to limit lines just before sequence number `before`, oldest first: pass size() for the
+    // last page, then the sequence number of the first line returned for the page before it.
+    // Returns fewer lines (possibly none) once it reaches the oldest line still kept.
+    Page replay(long before, int limit) {
+        long from, memory;
+        List<String> newer;
+        lock.lock();
+        try {
+            long to = Math.min(before, next);
+            long ringStart = Math.max(0, next - ring.length);
+            from = Math.max(!ringOnly ? Math.min(first, ringStart) : ringStart, to - limit);
+            if (from >= to) return new Page(List.of(), to);
+
+            // lines from `memory` on are still in the ring or waiting in pending, older ones are on disk
+            memory = Math.max(from, Math.min(written, ringStart));
+            newer = new ArrayList<>((int) (to - memory));
+            for (long seq = memory; seq < to; seq++) {
+                newer.add(seq >= ringStart
+                    ? ring[(int) (seq % ring.length)]
+                    : new String(pending.get((int) (seq - written)), StandardCharsets.UTF_8));
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (from == memory) return new Page(newer, from);
+
+        List<String> result = new ArrayList<>((int) (memory - from) + newer.size());
+        diskLock.lock();
+        try {
+            readDisk(from, memory, result);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            diskLock.unlock();
+        }
+        result.addAll(newer);
+        return new Page(result, from);
+    }
+
+    record Page(List<String> lines, long first) { }
+
+    // called with the lock held
+    private List<String> lines(long from, long to) {
+        List<String> result = new ArrayList<>((int) (to - from));
+        for (long seq = from; seq < to; seq++) result.add(ring[(int) (seq % ring.length)]);
+        return result;
+    }
+
+    // Writes the pending lines to the log and forces it; called by the flusher thread and the
+    // shutdown hook. The lock is only taken to copy the batch and to retire it, so appends never
+    // wait for the disk.
+    private void flush() {
+        diskLock.lock();
+        try {
+            List<byte[]> batch;
+            long base;
+            lock.lock();
+            try {
+                if (pending.isEmpty()) return;
+                batch = new ArrayList<>(pending);
+                base = written;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException failed = null;
+            try {
+                for (int i = 0; i < batch.size(); i++) write(base + i, batch.get(i));
+                active.force();
+            } catch (IOException ex) {
+                failed = ex;
+            }
+
+            lock.lock();
+            try {
+                if (failed != null) {
+                    // keep chatting on the in-memory ring if the disk goes away
+                    ringOnly = true;
+                    pending.clear();
+                    written = next;
+                } else {
+                    pending.subList(0, batch.size()).clear();
+                    written = base + batch.size();
+                    if (!segments.isEmpty()) first = segments.firstKey();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (failed != null) {
+                open.remove(this);
+                System.err.println("Cannot write history to " + dir + ", keeping only the last " + ring.length + " lines: " + failed);
+            }
+        } finally {
+            diskLock.unlock();
+        }
+    }
+
+    // Reads lines [from, to) from the segments on disk
+    private void readDisk(long from, long to, List<String> out) throws IOException {
+        if (segments.isEmpty()) return;
+        Long base = segments.floorKey(from);
+        if (base == null) base = segments.firstKey();
+        long lastBase = segments.lastKey();
+        for (Map.Entry<Long, Path> e : segments.tailMap(base, true).entrySet()) {
+            ByteBuffer segment = e.getKey() == lastBase && active != null
+                ? active.duplicate().clear()
+                : map(e.getValue(), FileChannel.MapMode.READ_ONLY);
+            long seq = e.getKey();
+            while (seq < to && segment.remaining() >= 4) {
+                int length = segment.getInt(segment.position());
+                if (length <= 0 || length > segment.remaining() - 4) break;
+                if (seq >= from) {
+                    byte[] bytes = new byte[length];
+                    segment.get(segment.position() + 4, bytes);
+                    out.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+                segment.position(segment.position() + 4 + length);
+                seq++;
+            }
+            if (seq >= to) return;
+        }
+    }
+
+    // Appends line seq to the active segment; called with diskLock held
+    private void write(long seq, byte[] bytes) throws IOException {
+        int length = Math.min(bytes.length, SEGMENT_BYTES - 4);
+        if (active == null || active.remaining() < 4 + length) roll(seq);
+
+        int at = active.position();
+        active.put(at + 4, bytes, 0, length);
+        active.putInt(at, length);
+        active.position(at + 4 + length);
+    }
+
+    // Starts a new segment for line `base` onwards and drops the oldest ones beyond MAX_SEGMENTS
+    private void roll(long base) throws IOException {
+        if (active != null) active.force();
+        Path file = dir.resolve(String.format("%020d.log", base));
+        active = map(file, FileChannel.MapMode.READ_WRITE);
+        segments.put(base, file);
+        while (segments.size() > MAX_SEGMENTS) {
+            Files.deleteIfExists(segments.pollFirstEntry().getValue());
+        }
+    }
+
+    // Rebuilds the sequence counter and the ring from the segments left by a previous run
+    private void recover(String room) throws IOException {
+        Files.createDirectories(dir);
+        Path name = dir.resolve("name");
+        if (!Files.exists(name)) Files.write(name, room.getBytes(StandardCharsets.UTF_8));
+        // only segment names: a stray "*.log" must not stop the room from opening
+        File[] files = dir.toFile().listFiles((d, file) -> file.matches("\\d{20}\\.log"));
+        if (files == null || files.length == 0) return;
+        for (File f : files) {
+            segments.put(Long.parseLong(f.getName().substring(0, f.getName().length() - 4)), f.toPath());
+        }
+
+        Map.Entry<Long, Path> last = segments.lastEntry();
+        active = map(last.getValue(), FileChannel.MapMode.READ_WRITE);
+        next = last.getKey();
+        while (active.remaining() >= 4) {
+            int length = active.getInt(active.position());
+            if (length <= 0 || length > active.remaining() - 4) break;
+            active.position(active.position() + 4 + length);
+            next++;
+        }
+        written = next;
+        first = segments.firstKey();
+
+        List<String> tail = new ArrayList<>();
+        long from = Math.max(segments.firstKey(), next - ring.length);
+        readDisk(from, next, tail);
+        for (int i = 0; i < tail.size(); i++) ring[(int) ((from + i) % ring.length)] = tail.get(i);
+    }
+
+    private static MappedByteBuffer map(Path file, FileChannel.MapMode mode) throws IOException {
+        boolean write = mode == FileChannel.MapMode.READ_WRITE;
+        try (FileChannel channel = write
+            ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(mode, 0, write ? SEGMENT_BYTES : channel.size());
+        }
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// Write-ahead log of the reconnect sessions, so tokens survive a restart and a failover.
+//
+// Every change to a session is appended as a small record
+//   [int length][byte type][string token][long lastAccess][string username][string room]
+// (a string is [int length][UTF-8 bytes]) to sessions.log (-Dchat.sessions.log; empty disables
+// it). Records are buffered and written and forced to disk together every -Dchat.sessions.fsync
+// ms (or once 64KB are waiting). Records are idempotent (open puts the whole session, the
+// others set one field), so replaying the log at startup rebuilds the sessions in one read.
+// Once the log has grown to twice its size after the last compaction (and at least
+// -Dchat.sessions.compact bytes), the fsync thread rewrites it as one open record per live
+// session, followed by the records appended meanwhile, and renames it into place.
+//
+// Replication: a server started with -Dchat.replication.port=<port> streams the log to standby
+// servers over mutual TLS: the records carry every live token, so a standby must present a
+// certificate the primary trusts (the servers' own key, from javax.net.ssl.keyStore) before it
+// gets anything. One started with -Dchat.replication.primary=<host:port> follows it, applying
+// and logging every record, so clients can reconnect to the standby with their saved token. A
+// standby gets a snapshot of the live sessions when it connects, then the changes as they
+// happen; one that falls -Dchat.replication.backlog records behind is disconnected and starts
+// over with a new snapshot when it reconnects.
+final class SessionLog {
+    static final long FSYNC_MILLIS = Long.getLong("chat.sessions.fsync", 100);
+    static final long MIN_COMPACT_BYTES = Long.getLong("chat.sessions.compact", 1 << 20);
+    static final int MAX_BACKLOG = Integer.getInteger("chat.replication.backlog", 65536);
+
+    static final byte OPEN = 1, ROOM = 2, TOUCH = 3, CLOSE = 4;
+
+    // One change to a session; room is null outside a room
+    record Entry(byte type, String token, long lastAccess, String username, String room) { }
+
+    private final Path file;
+    private final Consumer<Entry> apply;
+    private final Supplier<Collection<Entry>> snapshot;
+
+    private final Lock lock = new ReentrantLock();
+    private FileChannel log;
+    private long size, compactedSize;
+    private boolean dirty;
+    // records not yet written to the log
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    // records appended since a running compaction took its snapshot, null when none is running
+    private ByteArrayOutputStream sinceSnapshot;
+
+    private final Set<BlockingQueue<byte[]>> standbys = ConcurrentHashMap.newKeySet();
+
+    // apply rebuilds a session from a record (at startup and on a standby); snapshot lists the
+    // live sessions as open records (for compaction and for a standby that connects)
+    SessionLog(Path file, Consumer<Entry> apply, Supplier<Collection<Entry>> snapshot) {
+        this.file = file;
+        this.apply = apply;
+        this.snapshot = snapshot;
+    }
+
+    // Replays the log and starts the fsync thread; a no-op without a log file
+    SessionLog open() {
+        if (file == null) return this;
+        try {
+            long t0 = System.nanoTime();
+            log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int restored = replay();
+            size = compactedSize = log.size();
+            if (restored > 0) {
+                System.out.printf("Restored %d session records from %s in %d ms%n", restored, file, (System.nanoTime() - t0) / 1_000_000);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot open session log " + file, ex);
+        }
+        Thread.startVirtualThread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(Duration.ofMillis(FSYNC_MILLIS));
+                    if (force()) compact();
+                }
+            } catch (InterruptedException ignored) { }
+        });
+        return this;
+    }
+
+    void opened(String token, long lastAccess, String username, String room) {
+        append(new Entry(OPEN, token, lastAccess, username, room));
+    }
+
+    void room(String token, String room) {
+        append(new Entry(ROOM, token, 0, null, room));
+    }
+
+    void touched(String token, long lastAccess) {
+        append(new Entry(TOUCH, token, lastAccess, null, null));
+    }
+
+    void closed(String token) {
+        append(new Entry(CLOSE, token, 0, null, null));
+    }
+
+    private void append(Entry entry) {
+        if (log == null && standbys.isEmpty()) return;
+        byte[] record = encode(entry);
+        lock.lock();
+        try {
+            if (log != null) {
+                pending.write(record);
+                if (sinceSnapshot != null) sinceSnapshot.write(record);
+                size += record.length;
+                if (pending.size() >= 1 << 16) writePending();
+            }
+            for (BlockingQueue<byte[]> standby : standbys) {
+                // a standby this far behind starts over from a snapshot
+                if (standby.size() >= MAX_BACKLOG || !standby.offer(record)) {
+                    standbys.remove(standby);
+                    standby.clear();
+                    standby.offer(new byte[0]);
+                }
+            }
+        } catch (IOException ex) {
+            // sessions keep working in memory if the disk goes away
+            ex.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private void writePending() throws IOException {
+        if (pending.size() == 0) return;
+        write(log, pending.toByteArray());
+        pending.reset();
+        dirty = true;
+    }
+
+    // Runs on the fsync thread: rewrites the log as the live sessions only. The snapshot is taken
+    // under the lock and written without it; the records appended meanwhile are then added after
+    // it and the new log replaces the old one, which supersedes whatever is still pending.
+    private void compact() {
+        Path partial = file.resolveSibling(file.getFileName() + ".tmp");
+        List<byte[]> live = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Entry e : snapshot.get()) live.add(encode(e));
+            sinceSnapshot = new ByteArrayOutputStream(1 << 16);
+        } finally {
+            lock.unlock();
+        }
+
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+            for (byte[] record : live) {
+                buffer.write(record);
+                if (buffer.size() >= 1 << 16) {
+                    write(out, buffer.toByteArray());
+                    buffer.reset();
+                }
+            }
+            write(out, buffer.toByteArray());
+            out.force(true);
+
+            lock.lock();
+            try {
+                write(out, sinceSnapshot.toByteArray());
+                out.force(true);
+                log.close();
+                Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                log = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                size = compactedSize = log.size();
+                log.position(size);
+                pending.reset();
+                dirty = false;
+            } finally {
+                sinceSnapshot = null;
+                lock.unlock();
+            }
+        } catch (IOException ex) {
+            // the old log is still complete; the next round tries again
+            ex.printStackTrace();
+            lock.lock();
+            try {
+                sinceSnapshot = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private int replay() throws IOException {
+        long length = log.size();
+        if (length > Integer.MAX_VALUE) throw new IOException("Session log too large");
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && log.read(buffer, buffer.position()) >= 0) { }
+        buffer.flip();
+
+        int count = 0;
+        long good = 0;
+        try {
+            while (buffer.remaining() >= 4) {
+                int n = buffer.getInt(buffer.position());
+                if (n <= 0 || n > buffer.remaining() - 4) break;
+                byte[] record = new byte[n];
+                buffer.position(buffer.position() + 4);
+                buffer.get(record);
+                apply.accept(decode(record));
+                good = buffer.position();
+                count++;
+            }
+        } catch (IOException ex) {
+            // a garbled record ends the log like a torn one
+        }
+        if (good < length) {
+            System.err.println("Session log: discarding " + (length - good) + " bytes of a torn record");
+            log.truncate(good);
+        }
+        log.position(good);
+        return count;
+    }
+
+    // Writes what is pending under the lock, then forces it to disk without holding the lock.
+    // Returns true when the log has grown enough to be compacted.
+    private boolean force() {
+        FileChannel channel;
+        boolean compact;
+        lock.lock();
+        try {
+            writePending();
+            compact = size > Math.max(MIN_COMPACT_BYTES, 2 * compactedSize);
+            if (!dirty) return compact;
+            dirty = false;
+            channel = log;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ex) {
+            // compacted meanwhile; compaction forces the new log itself
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return compact;
+    }
+
+    // Primary side: accepts standbys on port and streams the log to each of them
+    void serveStandbys(int port) {
+        Thread.startVirtualThread(() -> {
+            try (SSLServerSocket server = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port)) {
+                server.setNeedClientAuth(true);
+                System.out.println("Replicating sessions to standbys on port " + port);
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread.startVirtualThread(() -> stream(socket));
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    private void stream(Socket socket) {
+        // nothing is sent before the standby has shown its certificate
+        try {
+            ((SSLSocket) socket).startHandshake();
+        } catch (IOException ex) {
+            System.out.println("Rejected standby " + socket.getRemoteSocketAddress() + ": " + ex.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+            return;
+        }
+
+        BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        List<byte[]> initial = new ArrayList<>();
+        // snapshot and subscribe atomically, so no change falls in between
+        lock.lock();
+        try {
+            for (Entry e : snapshot.get()) initial.add(encode(e));
+            standbys.add(queue);
+        } finally {
+            lock.unlock();
+        }
+
+        String standby = socket.getRemoteSocketAddress().toString();
+        System.out.println("Standby " + standby + " connected, sending " + initial.size() + " sessions");
+        try (socket; DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            // records carry their own length prefix, which frames them on the wire too
+            for (byte[] record : initial) out.write(record);
+            initial = null;
+            out.flush();
+            while (true) {
+                byte[] record = queue.take();
+                // an empty record means this standby was dropped for falling behind
+                if (record.length == 0) break;
+                out.write(record);
+                if (queue.isEmpty()) out.flush();
+            }
+        } catch (IOException | InterruptedException ex) {
+            // the standby went away; it will reconnect and get a new snapshot
+        } finally {
+            standbys.remove(queue);
+            System.out.println("Standby " + standby + " disconnected");
+        }
+    }
+
+    // Standby side: follows the primary at host:port, reconnecting every second while it is down
+    void followPrimary(String host, int port) {
+        Thread.startVirtualThread(() -> {
+            boolean connected = true;
+            while (true) {
+                try (Socket socket = SSLSocketFactory.getDefault().createSocket(host, port);
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16))) {
+                    System.out.println("Following primary " + host + ":" + port);
+                    connected = true;
+                    while (true) {
+                        byte[] record = new byte[in.readInt()];
+                        in.readFully(record);
+                        Entry entry = decode(record);
+                        apply.accept(entry);
+                        append(entry);
+                    }
+                } catch (EOFException ex) {
+                    System.out.println("Primary " + host + ":" + port + " closed the replication stream");
+                } catch (IOException ex) {
+                    if (connected) System.out.println("Primary " + host + ":" + port + " unreachable: " + ex.getMessage());
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private static byte[] encode(Entry e) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(e.type());
+            string(out, e.token());
+            out.writeLong(e.lastAccess());
+            string(out, e.username() == null ? "" : e.username());
+            string(out, e.room() == null ? "" : e.room());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length - 4);
+        return record;
+    }
+
+    // record without its length prefix
+    private static Entry decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String token = string(in);
+        long lastAccess = in.readLong();
+        String username = string(in);
+        String room = string(in);
+        if (type < OPEN || type > CLOSE) throw new IOException("Bad session record type " + type);
+        return new Entry(type, token, lastAccess, username.isEmpty() ? null : username, room.isEmpty() ? null : room);
+    }
+
+    // [int length][UTF-8 bytes]: writeUTF stops at 65535 bytes, and a room name may be longer
+    private static void string(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String string(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Bad session record string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
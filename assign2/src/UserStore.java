@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Registered users and their salted password hashes (PBKDF2-HMAC-SHA256).
+//
+// The database is an append-only log (users.db, -Dchat.users.db) of records
+//   [int length][short name length][UTF-8 name][int iterations][16-byte salt][32-byte hash]
+// A copy of the log is kept in memory as one byte array, with an open-addressing table of record
+// offsets keyed by the name's hash, so startup is a single read with no per-user objects and
+// registering a user appends one record instead of rewriting or reloading anything. A torn
+// record at the end of the log (a crash mid-append) is cut off when the log is opened.
+//
+// Hashing is deliberately slow, so it runs on its own small pool (-Dchat.users.hashers threads,
+// at most -Dchat.users.queue waiting) and callers get a future: the chat threads and event
+// loops never spend the CPU time themselves.
+//
+// The first time the database is created, the plaintext users.txt of older versions is imported
+// (hashing every password once, on the pool).
+final class UserStore {
+    static final int ITERATIONS = Integer.getInteger("chat.users.iterations", 100_000);
+    static final int HASHERS = Integer.getInteger("chat.users.hashers", Math.max(1, Runtime.getRuntime().availableProcessors()));
+    static final int MAX_QUEUED = Integer.getInteger("chat.users.queue", 1024);
+
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final int MAX_NAME_BYTES = Short.MAX_VALUE;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final FileChannel log;
+    private final ThreadPoolExecutor hashers;
+    // told about every user registered here (cluster mode shares them with the other nodes)
+    private volatile Consumer<byte[]> onRegister;
+
+    // appendLock serializes registrations (check, write, publish); lock guards data and the table
+    private final Lock appendLock = new ReentrantLock();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the log's bytes: records live at the same offsets as in the file
+    private byte[] data = new byte[4096];
+    private int length;
+
+    // open-addressing table, linear probing: offset + 1 of a record, 0 for a free slot
+    private int[] slots = new int[1024];
+    private int[] hashes = new int[1024];
+    private int count;
+
+    private UserStore(FileChannel log) {
+        this.log = log;
+        AtomicInteger n = new AtomicInteger();
+        this.hashers = new ThreadPoolExecutor(HASHERS, HASHERS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+            Thread t = new Thread(r, "chat-hasher-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static UserStore open(Path file, File legacy) {
+        try {
+            if (!Files.exists(file) && legacy.exists()) {
+                // built aside and renamed into place, so an interrupted import starts over next time
+                Path partial = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.deleteIfExists(partial);
+                UserStore imported = new UserStore(channel(partial));
+                try {
+                    imported.importText(legacy);
+                } finally {
+                    imported.close();
+                }
+                Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            UserStore store = new UserStore(channel(file));
+            store.load();
+            return store;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot open user database " + file, ex);
+        }
+    }
+
+    private static FileChannel channel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void close() throws IOException {
+        hashers.shutdown();
+        log.close();
+    }
+
+    boolean exists(String name) {
+        lock.readLock().lock();
+        try {
+            return find(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void onRegister(Consumer<byte[]> listener) {
+        onRegister = listener;
+    }
+
+    // Adds a user registered elsewhere, given its record; false if the name exists or the record is bad
+    boolean adopt(byte[] record) {
+        if (record.length < 4 + 2 + 4 + SALT_BYTES + HASH_BYTES) return false;
+        ByteBuffer r = ByteBuffer.wrap(record);
+        int nameLength = r.getShort(4) & 0xffff;
+        if (r.getInt(0) != record.length - 4 || record.length != 4 + 2 + nameLength + 4 + SALT_BYTES + HASH_BYTES) return false;
+        try {
+            return append(Arrays.copyOfRange(record, 6, 6 + nameLength), record);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    // Every record, back to back as in the log
+    byte[] records() {
+        lock.readLock().lock();
+        try {
+            return Arrays.copyOf(data, length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Completes with false if the name is taken (possibly by a concurrent registration), or
+    // exceptionally if the hashing pool is full or the log cannot be written
+    CompletableFuture<Boolean> register(String name, String password) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_BYTES || exists(name)) return CompletableFuture.completedFuture(false);
+        return hashing(() -> {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            byte[] record = record(nameBytes, ITERATIONS, salt, hash(password, salt, ITERATIONS));
+            try {
+                if (!append(nameBytes, record)) return false;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            Consumer<byte[]> listener = onRegister;
+            if (listener != null) listener.accept(record);
+            return true;
+        });
+    }
+
+    // Completes with whether the password matches (false for unknown users), or exceptionally
+    // if the hashing pool is full
+    CompletableFuture<Boolean> verify(String name, String password) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int iterations;
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] expected = new byte[HASH_BYTES];
+        lock.readLock().lock();
+        try {
+            int at = find(nameBytes);
+            if (at < 0) return CompletableFuture.completedFuture(false);
+            ByteBuffer r = ByteBuffer.wrap(data, at, length - at);
+            r.position(at + 4 + 2 + nameBytes.length);
+            iterations = r.getInt();
+            r.get(salt).get(expected);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return hashing(() -> MessageDigest.isEqual(expected, hash(password, salt, iterations)));
+    }
+
+    private <T> CompletableFuture<T> hashing(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, hashers);
+        } catch (RejectedExecutionException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    // Writes the record and publishes it to readers; false if the name already exists
+    private boolean append(byte[] name, byte[] record) throws IOException {
+        appendLock.lock();
+        try {
+            // only appendLock holders modify the table, so it can be read here without lock
+            if (find(name) >= 0) return false;
+            int at = length;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) log.write(buffer, at + buffer.position());
+            log.force(false);
+
+            lock.writeLock().lock();
+            try {
+                if (at + record.length > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, at + record.length));
+                System.arraycopy(record, 0, data, at, record.length);
+                length = at + record.length;
+                index(at);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Reads the whole log and indexes it, cutting off a torn record at the end
+    private void load() throws IOException {
+        long size = log.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("User database too large");
+        data = new byte[Math.max(4096, (int) size)];
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) size);
+        while (buffer.hasRemaining() && log.read(buffer, buffer.position()) >= 0) { }
+
+        int at = 0;
+        while (at + 4 <= size) {
+            int n = ByteBuffer.wrap(data).getInt(at);
+            if (n < 2 + 4 + SALT_BYTES + HASH_BYTES || at + 4L + n > size) break;
+            int nameLength = ((data[at + 4] & 0xff) << 8) | (data[at + 5] & 0xff);
+            if (n != 2 + nameLength + 4 + SALT_BYTES + HASH_BYTES) break;
+            length = at + 4 + n;
+            index(at);
+            at = length;
+        }
+        if (length < size) {
+            System.err.println("User database: discarding " + (size - length) + " bytes of a torn record");
+            log.truncate(length);
+        }
+    }
+
+    // Hashes the plaintext "user:pass" lines of an older users.txt on the pool, then appends them
+    private void importText(File legacy) throws IOException {
+        List<CompletableFuture<Boolean>> imported = new ArrayList<>();
+        // keeps the pool's queue from overflowing on a large file
+        Semaphore inFlight = new Semaphore(MAX_QUEUED);
+        try (BufferedReader r = new BufferedReader(new FileReader(legacy, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] p = line.split(":", 2);
+                if (p.length != 2) continue;
+                inFlight.acquireUninterruptibly();
+                imported.add(register(p[0], p[1]).whenComplete((ok, ex) -> inFlight.release()));
+            }
+        }
+        CompletableFuture.allOf(imported.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println("Imported " + size() + " users from " + legacy + " (it can now be deleted)");
+    }
+
+    // called with a lock held; offset of the record for name, or -1
+    private int find(byte[] name) {
+        int h = hashOf(name, 0, name.length);
+        int mask = slots.length - 1;
+        for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] != h) continue;
+            int at = slots[i] - 1;
+            int n = ((data[at + 4] & 0xff) << 8) | (data[at + 5] & 0xff);
+            if (Arrays.equals(data, at + 6, at + 6 + n, name, 0, name.length)) return at;
+        }
+        return -1;
+    }
+
+    // called with the write lock held (or before the store is shared)
+    private void index(int at) {
+        if ((count + 1) * 2 > slots.length) grow();
+        int n = ((data[at + 4] & 0xff) << 8) | (data[at + 5] & 0xff);
+        int h = hashOf(data, at + 6, at + 6 + n);
+        int mask = slots.length - 1;
+        int i = h & mask;
+        while (slots[i] != 0) {
+            // a later record for the same name replaces the earlier one
+            int other = slots[i] - 1;
+            if (hashes[i] == h && Arrays.equals(data, other + 6, other + 6 + n, data, at + 6, at + 6 + n)) {
+                slots[i] = at + 1;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = at + 1;
+        hashes[i] = h;
+        count++;
+    }
+
+    private void grow() {
+        int[] oldSlots = slots, oldHashes = hashes;
+        slots = new int[oldSlots.length * 2];
+        hashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == 0) continue;
+            int i = oldHashes[j] & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = oldSlots[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    private static int hashOf(byte[] bytes, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) h = 31 * h + bytes[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] record(byte[] name, int iterations, byte[] salt, byte[] hash) {
+        ByteBuffer b = ByteBuffer.allocate(4 + 2 + name.length + 4 + SALT_BYTES + HASH_BYTES);
+        b.putInt(b.capacity() - 4).putShort((short) name.length).put(name).putInt(iterations).put(salt).put(hash);
+        return b.array();
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}